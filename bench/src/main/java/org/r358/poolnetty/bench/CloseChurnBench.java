@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.bench;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lease latency while the pool opens and reaps a large number of ephemeral connections.
+ * <p>A churn thread repeatedly leases up to churn connections, yields them and lets the ephemeral reaper close them
+ * all at once. Meanwhile measuring threads lease and yield in a loop and record how long each lease took.</p>
+ * <p>Usage: CloseChurnBench [churn] [rounds] [measuringThreads]</p>
+ */
+public class CloseChurnBench
+{
+    private static final int LIFESPAN_MILLIS = 200;
+
+    public static void main(String[] args)
+        throws Exception
+    {
+        int churn = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int measuring = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+
+        final LocalAddress address = new LocalAddress("poolnetty-churn-bench");
+        final EventLoopGroup elg = new LocalEventLoopGroup();
+
+        Channel server = new ServerBootstrap()
+            .group(elg)
+            .channel(LocalServerChannel.class)
+            .childHandler(new ChannelInitializer()
+            {
+                @Override
+                protected void initChannel(Channel ch)
+                    throws Exception
+                {
+                    ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                }
+            })
+            .bind(address).sync().channel();
+
+        NettyConnectionPoolBuilder ncb = new NettyConnectionPoolBuilder(measuring, churn, LIFESPAN_MILLIS);
+
+        ncb.withBootstrapProvider(new BootstrapProvider()
+        {
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider)
+            {
+                return new Bootstrap().group(elg).channel(LocalChannel.class);
+            }
+        });
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+                return new ConnectionInfo(address, null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                    }
+                });
+            }
+        });
+
+        final AtomicInteger closed = new AtomicInteger();
+        final NettyConnectionPool ncp = ncb.build();
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void connectionClosed(PoolProvider provider, Channel channel)
+            {
+                closed.incrementAndGet();
+            }
+        });
+
+        if (!ncp.start(10, TimeUnit.SECONDS))
+        {
+            elg.shutdownGracefully();
+            throw new IllegalStateException("Pool did not open " + measuring + " connections.");
+        }
+
+        //
+        // Measure lease latency until the churn is over.
+        //
+        final Sampler[] samplers = new Sampler[measuring];
+        for (int t = 0; t < measuring; t++)
+        {
+            samplers[t] = new Sampler(ncp);
+            samplers[t].start();
+        }
+
+        long start = System.nanoTime();
+        int opened = 0;
+        for (int r = 0; r < rounds; r++)
+        {
+            List<LeasedChannel> leased = ncp.leaseUpTo(churn, 10, TimeUnit.SECONDS, "churn");
+            opened += leased.size();
+            for (LeasedChannel lc : leased)
+            {
+                lc.yield();
+            }
+            Thread.sleep(LIFESPAN_MILLIS * 2); // Reaped together.
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        List<long[]> all = new ArrayList<>();
+        int count = 0;
+        for (Sampler sampler : samplers)
+        {
+            sampler.running = false;
+            sampler.join();
+            all.add(Arrays.copyOf(sampler.samples, sampler.count));
+            count += sampler.count;
+        }
+
+        long[] latencies = new long[count];
+        int at = 0;
+        for (long[] part : all)
+        {
+            System.arraycopy(part, 0, latencies, at, part.length);
+            at += part.length;
+        }
+        Arrays.sort(latencies);
+
+        System.out.printf("churn=%d rounds=%d leasedByChurn=%d closed=%d elapsed=%dms%n",
+            churn, rounds, opened, closed.get(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+        System.out.printf("leases=%d p50=%dus p99=%dus p99.9=%dus max=%dus%n", count,
+            micros(latencies, 0.5), micros(latencies, 0.99), micros(latencies, 0.999),
+            latencies.length == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(latencies[latencies.length - 1]));
+
+        ncp.stop(true);
+        server.close().sync();
+        elg.shutdownGracefully();
+    }
+
+    private static long micros(long[] sorted, double quantile)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(sorted[(int)Math.min(sorted.length - 1, sorted.length * quantile)]);
+    }
+
+
+    /**
+     * Leases and yields in a loop, recording the time each lease took.
+     */
+    private static class Sampler
+        extends Thread
+    {
+        private final PoolProvider poolProvider;
+        private volatile boolean running = true;
+        private long[] samples = new long[1 << 16];
+        private int count = 0;
+
+        private Sampler(PoolProvider poolProvider)
+        {
+            this.poolProvider = poolProvider;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run()
+        {
+            while (running)
+            {
+                try
+                {
+                    long t0 = System.nanoTime();
+                    LeasedChannel lc = poolProvider.lease(10, TimeUnit.SECONDS, "sample");
+                    long took = System.nanoTime() - t0;
+
+                    if (count == samples.length)
+                    {
+                        samples = Arrays.copyOf(samples, count * 2);
+                    }
+                    samples[count++] = took;
+
+                    lc.yield();
+                    Thread.sleep(1);
+                }
+                catch (Exception ex)
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
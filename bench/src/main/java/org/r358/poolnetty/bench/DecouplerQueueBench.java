@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.bench;
+
+import org.openjdk.jmh.annotations.*;
+import org.r358.poolnetty.common.PoolExceptionHandler;
+import org.r358.poolnetty.pool.concurrent.BatchedTaskQueue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the decoupler's command path, commands handed straight to a ScheduledThreadPoolExecutor as the pool
+ * used to do against commands queued on a BatchedTaskQueue drained on that same executor.
+ * <p>Each command does what the decoupler does to record a fast path lease and its yield, a put and a remove on a map
+ * only the decoupler touches, so the cost measured is that of getting commands onto the decoupler.</p>
+ * <p>Run with: gradle :bench:jmh -PjmhArgs="DecouplerQueueBench"</p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecouplerQueueBench
+{
+    private static final int COMMANDS = 1000;
+
+    @State(Scope.Benchmark)
+    public static class Decoupler
+    {
+        @Param({"executor", "batched"})
+        public String path;
+
+        ScheduledThreadPoolExecutor executor;
+        Executor commands;
+
+        /**
+         * Leases known to the decoupler, decoupler thread only.
+         */
+        final Map<Long, Object> leases = new HashMap<>();
+
+        @Setup
+        public void setUp()
+        {
+            executor = new ScheduledThreadPoolExecutor(1);
+            executor.setRemoveOnCancelPolicy(true);
+
+            if ("batched".equals(path))
+            {
+                commands = new BatchedTaskQueue(executor, 256, new PoolExceptionHandler()
+                {
+                    @Override
+                    public void handleException(Throwable th)
+                    {
+                        th.printStackTrace();
+                    }
+                });
+            }
+            else
+            {
+                commands = executor;
+            }
+        }
+
+        @TearDown
+        public void tearDown()
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Leaser
+    {
+        long nextId = Thread.currentThread().getId() << 32;
+    }
+
+    /**
+     * Hand over COMMANDS lease and yield records and wait until the decoupler has processed them all.
+     */
+    @Benchmark
+    @OperationsPerInvocation(COMMANDS)
+    @Threads(4)
+    public void leaseYieldCommands(final Decoupler decoupler, Leaser leaser)
+        throws Exception
+    {
+        for (int t = 0; t < COMMANDS / 2; t++)
+        {
+            final Long id = leaser.nextId++;
+            decoupler.commands.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    decoupler.leases.put(id, id);
+                }
+            });
+            decoupler.commands.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    decoupler.leases.remove(id);
+                }
+            });
+        }
+
+        final CountDownLatch processed = new CountDownLatch(1);
+        decoupler.commands.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                processed.countDown();
+            }
+        });
+        processed.await();
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.bench;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import org.openjdk.jmh.annotations.*;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one lease and yield on an otherwise idle pool, meant to be run with the GC profiler so
+ * gc.alloc.rate.norm gives the bytes allocated per lease and yield.
+ * <p>One thread leases and yields in a loop over a few connections, with and without the recent channels of the
+ * thread. The count covers the decoupler as well as the leasing thread.</p>
+ * <p>Run with: gradle :bench:jmh -PjmhArgs="LeaseYieldAllocBench -prof gc"</p>
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LeaseYieldAllocBench
+{
+    private static final int CONNECTIONS = 4;
+
+    /**
+     * Channels remembered per thread, 0 leaves the recent channels off.
+     */
+    @Param({"0", "4"})
+    public int recentPerThread;
+
+    private EventLoopGroup elg;
+    private Channel server;
+    private NettyConnectionPool pool;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        final LocalAddress address = new LocalAddress("poolnetty-alloc-bench");
+        elg = new LocalEventLoopGroup();
+
+        server = new ServerBootstrap()
+            .group(elg)
+            .channel(LocalServerChannel.class)
+            .childHandler(new ChannelInitializer()
+            {
+                @Override
+                protected void initChannel(Channel ch)
+                    throws Exception
+                {
+                    ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                }
+            })
+            .bind(address).sync().channel();
+
+        NettyConnectionPoolBuilder ncb = new NettyConnectionPoolBuilder(CONNECTIONS, 0, 60000);
+
+        ncb.withBootstrapProvider(new BootstrapProvider()
+        {
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider)
+            {
+                return new Bootstrap().group(elg).channel(LocalChannel.class);
+            }
+        });
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+                return new ConnectionInfo(address, null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                    }
+                });
+            }
+        });
+
+        ncb.withRecentChannelsPerThread(recentPerThread);
+
+        pool = ncb.build();
+        if (!pool.start(10, TimeUnit.SECONDS))
+        {
+            throw new IllegalStateException("Pool did not open " + CONNECTIONS + " connections.");
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+        throws Exception
+    {
+        pool.stop(true);
+        server.close().sync();
+        elg.shutdownGracefully();
+    }
+
+    @Benchmark
+    public void leaseYield()
+        throws Exception
+    {
+        pool.lease(10, TimeUnit.SECONDS, null).yield();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.bench;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Leases from a pool on a large number of concurrent virtual threads and counts carrier pinning.
+ * <p>Every virtual thread takes a blocking lease, holds it briefly and yields it. The pool is much smaller than the
+ * number of threads so most leases wait on the decoupler. Pinning is observed through the jdk.VirtualThreadPinned
+ * event, the run fails when any virtual thread was pinned while in the pool.</p>
+ * <p>Usage: VirtualThreadLeaseBench [threads] [connections] [holdMillis]</p>
+ */
+public class VirtualThreadLeaseBench
+{
+    public static void main(String[] args)
+        throws Exception
+    {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        final long holdMillis = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        final LocalAddress address = new LocalAddress("poolnetty-bench");
+        final EventLoopGroup elg = new LocalEventLoopGroup();
+
+        Channel server = new ServerBootstrap()
+            .group(elg)
+            .channel(LocalServerChannel.class)
+            .childHandler(new ChannelInitializer()
+            {
+                @Override
+                protected void initChannel(Channel ch)
+                    throws Exception
+                {
+                    ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                }
+            })
+            .bind(address).sync().channel();
+
+        NettyConnectionPoolBuilder ncb = new NettyConnectionPoolBuilder(connections, 0, 1000);
+
+        ncb.withBootstrapProvider(new BootstrapProvider()
+        {
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider)
+            {
+                return new Bootstrap().group(elg).channel(LocalChannel.class);
+            }
+        });
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+                return new ConnectionInfo(address, null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                    }
+                });
+            }
+        });
+
+        //
+        // A virtual thread runs once, per thread recent channels would never be reused.
+        //
+        ncb.withRecentChannelsPerThread(0);
+
+        final NettyConnectionPool ncp = ncb.build();
+        if (!ncp.start(10, TimeUnit.SECONDS))
+        {
+            elg.shutdownGracefully();
+            throw new IllegalStateException("Pool did not open " + connections + " connections.");
+        }
+
+        final LongAdder pinned = new LongAdder();
+        final AtomicLong longestPin = new AtomicLong();
+        RecordingStream events = new RecordingStream();
+        events.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO).withStackTrace();
+        events.onEvent("jdk.VirtualThreadPinned", new Consumer<RecordedEvent>()
+        {
+            @Override
+            public void accept(RecordedEvent e)
+            {
+                if (inPool(e))
+                {
+                    pinned.increment();
+                    longestPin.accumulateAndGet(e.getDuration().toNanos(), Math::max);
+                    System.err.println(e);
+                }
+            }
+        });
+        events.startAsync();
+
+        final LongAdder leased = new LongAdder();
+        final LongAdder failed = new LongAdder();
+
+        long start = System.nanoTime();
+        try (ExecutorService vts = Executors.newVirtualThreadPerTaskExecutor())
+        {
+            for (int t = 0; t < threads; t++)
+            {
+                vts.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            LeasedChannel lc = ncp.lease(60, TimeUnit.SECONDS, null);
+                            leased.increment();
+                            Thread.sleep(holdMillis);
+                            lc.yield();
+                        }
+                        catch (Exception ex)
+                        {
+                            failed.increment();
+                        }
+                    }
+                });
+            }
+        } // Waits for every virtual thread to finish.
+        long elapsedNanos = System.nanoTime() - start;
+
+        events.stop(); // Flushes and delivers outstanding events.
+        events.close();
+
+        System.out.printf("threads=%d connections=%d hold=%dms%n", threads, connections, holdMillis);
+        System.out.printf("leased=%d failed=%d elapsed=%dms leases/s=%.0f%n",
+            leased.sum(), failed.sum(), TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+            leased.sum() / (elapsedNanos / 1e9));
+        System.out.printf("pinned=%d longestPin=%dus%n", pinned.sum(), TimeUnit.NANOSECONDS.toMicros(longestPin.get()));
+
+        ncp.stop(true);
+        server.close().sync();
+        elg.shutdownGracefully();
+
+        if (pinned.sum() > 0 || failed.sum() > 0)
+        {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @param e A pinned event.
+     * @return true if the pool was on the stack of the pinned thread.
+     */
+    private static boolean inPool(RecordedEvent e)
+    {
+        if (e.getStackTrace() == null)
+        {
+            return false;
+        }
+
+        for (RecordedFrame frame : e.getStackTrace().getFrames())
+        {
+            if (frame.getMethod().getType().getName().startsWith("org.r358.poolnetty."))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.common;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.EventLoop;
+
+/**
+ * A BootstrapProvider that can create a Bootstrap for a specific event loop.
+ * <p>When event loop affinity is enabled the pool uses this to spread its connections evenly over the event loop
+ * group, the group is taken from the bootstrap returned by createBootstrap(PoolProvider).</p>
+ */
+public interface EventLoopBootstrapProvider
+    extends BootstrapProvider
+{
+
+    /**
+     * Create a new bootstrap whose group is the supplied event loop.
+     *
+     * @param poolProvider The pool provider.
+     * @param eventLoop    The event loop the new connection is to be registered with.
+     * @return The bootstrap.
+     */
+    Bootstrap createBootstrap(PoolProvider poolProvider, EventLoop eventLoop);
+
+}
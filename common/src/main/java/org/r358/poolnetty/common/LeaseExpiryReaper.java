@@ -36,5 +36,17 @@ public interface LeaseExpiryReaper
      */
     List<LeasedContext> reapHarvest(List<LeasedContext> currentLeases);
 
+    /**
+     * Reap the harvest at a given time, the pool calls this with the time of its Ticker.
+     * <p>The default ignores the time and calls reapHarvest(List), which is only correct with the wall clock ticker.</p>
+     *
+     * @param currentLeases List of current leases.
+     * @param now           The current time of the pool's ticker.
+     * @return A List of leases to be reaped.
+     */
+    default List<LeasedContext> reapHarvest(List<LeasedContext> currentLeases, long now)
+    {
+        return reapHarvest(currentLeases);
+    }
 
 }
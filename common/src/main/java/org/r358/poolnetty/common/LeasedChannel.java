@@ -317,7 +317,7 @@ public class LeasedChannel
     public void yield()
         throws PoolProviderException
     {
-        poolProvider.yield(inner);
+        poolProvider.yield(this);
     }
 
     @Override
@@ -336,6 +336,14 @@ public class LeasedChannel
         return inner;
     }
 
+    /**
+     * @return The id of the lease this channel was granted under.
+     */
+    public long getLeaseID()
+    {
+        return owningContext.getLeaseID();
+    }
+
     public Object getUserObject()
     {
         return userObject;
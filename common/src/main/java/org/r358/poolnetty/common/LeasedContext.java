@@ -36,12 +36,12 @@ public class LeasedContext
     private Runnable expirationRunnable;
 
 
-    public LeasedContext(long leaseID, long expireAfter, Channel leasedChannel, boolean ephemeral, Object userObject, int channelLifespan)
+    public LeasedContext(long leaseID, long expireAfter, Channel leasedChannel, boolean immortal, Object userObject, int channelLifespan)
     {
         this.leaseID = leaseID;
         this.expireAfter = expireAfter;
         this.leasedChannel = leasedChannel;
-        this.immortal = ephemeral;
+        this.immortal = immortal;
         this.userObject = userObject;
         this.channelLifespan = channelLifespan;
     }
@@ -76,6 +76,9 @@ public class LeasedContext
         return userObject;
     }
 
+    /**
+     * A lease is identified by its lease id alone.
+     */
     @Override
     public boolean equals(Object o)
     {
@@ -88,41 +91,13 @@ public class LeasedContext
             return false;
         }
 
-        LeasedContext that = (LeasedContext)o;
-
-        if (expireAfter != that.expireAfter)
-        {
-            return false;
-        }
-        if (leaseID != that.leaseID)
-        {
-            return false;
-        }
-        if (immortal != that.immortal)
-        {
-            return false;
-        }
-        if (leasedChannel != null ? !leasedChannel.equals(that.leasedChannel) : that.leasedChannel != null)
-        {
-            return false;
-        }
-        if (userObject != null ? !userObject.equals(that.userObject) : that.userObject != null)
-        {
-            return false;
-        }
-
-        return true;
+        return leaseID == ((LeasedContext)o).leaseID;
     }
 
     @Override
     public int hashCode()
     {
-        int result = (int)(leaseID ^ (leaseID >>> 32));
-        result = 31 * result + (int)(expireAfter ^ (expireAfter >>> 32));
-        result = 31 * result + (leasedChannel != null ? leasedChannel.hashCode() : 0);
-        result = 31 * result + (immortal ? 1 : 0);
-        result = 31 * result + (userObject != null ? userObject.hashCode() : 0);
-        return result;
+        return (int)(leaseID ^ (leaseID >>> 32));
     }
 
 
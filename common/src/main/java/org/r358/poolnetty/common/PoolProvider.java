@@ -20,10 +20,19 @@
 package org.r358.poolnetty.common;
 
 import io.netty.channel.Channel;
+import org.r358.poolnetty.common.exceptions.LeaseAcquireTimeoutException;
 import org.r358.poolnetty.common.exceptions.PoolProviderException;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
 
 /**
  * All pool implementations implement this interface is provides the basic concepts of:
@@ -47,6 +56,121 @@ public interface PoolProvider
      */
     Future<LeasedChannel> leaseAsync(int time, TimeUnit units, Object userObject, LeaseListener listener);
 
+    /**
+     * Request a lease as a CompletionStage, dependent stages run on the thread that grants the lease.
+     * Canceling the stage through toCompletableFuture() cancels the request.
+     * <p>The default completes the stage from a LeaseListener passed to leaseAsync().</p>
+     *
+     * @param time       The lease time.
+     * @param units      Time units.
+     * @param userObject The user object
+     * @return A stage that completes with the leased channel.
+     */
+    default CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject)
+    {
+        final CompletableFuture<LeasedChannel> stage = new CompletableFuture<>();
+
+        final Future<LeasedChannel> request = leaseAsync(time, units, userObject, new LeaseListener()
+        {
+            @Override
+            public void leaseRequest(boolean success, LeasedChannel channel, Throwable th)
+            {
+                if (!success)
+                {
+                    stage.completeExceptionally(th != null ? th : new PoolProviderException("Lease not granted."));
+                }
+                else if (!stage.complete(channel))
+                {
+                    //
+                    // Canceled while the lease was being granted, give it straight back.
+                    //
+                    try
+                    {
+                        PoolProvider.this.yield(channel);
+                    }
+                    catch (PoolProviderException e)
+                    {
+                        // The pool no longer knows the channel.
+                    }
+                }
+            }
+        });
+
+        stage.whenComplete(new BiConsumer<LeasedChannel, Throwable>()
+        {
+            @Override
+            public void accept(LeasedChannel channel, Throwable th)
+            {
+                if (stage.isCancelled())
+                {
+                    try
+                    {
+                        request.cancel(false);
+                    }
+                    catch (IllegalStateException e)
+                    {
+                        // Granted, the listener gives it back.
+                    }
+                }
+            }
+        });
+
+        return stage;
+    }
+
+    /**
+     * Request a lease as a CompletionStage that is completed on the given executor.
+     * <p>The default hands the outcome of leaseStage() over to the executor.</p>
+     *
+     * @param time       The lease time.
+     * @param units      Time units.
+     * @param userObject The user object
+     * @param executor   Completes the stage and runs its dependent stages.
+     * @return A stage that completes with the leased channel.
+     */
+    default CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, Executor executor)
+    {
+        final CompletableFuture<LeasedChannel> granted = leaseStage(time, units, userObject).toCompletableFuture();
+        final CompletableFuture<LeasedChannel> stage = new CompletableFuture<>();
+
+        granted.whenCompleteAsync(new BiConsumer<LeasedChannel, Throwable>()
+        {
+            @Override
+            public void accept(LeasedChannel channel, Throwable th)
+            {
+                if (th != null)
+                {
+                    stage.completeExceptionally(th);
+                }
+                else if (!stage.complete(channel))
+                {
+                    try
+                    {
+                        PoolProvider.this.yield(channel);
+                    }
+                    catch (PoolProviderException e)
+                    {
+                        // The pool no longer knows the channel.
+                    }
+                }
+            }
+        }, executor);
+
+        stage.whenComplete(new BiConsumer<LeasedChannel, Throwable>()
+        {
+            @Override
+            public void accept(LeasedChannel channel, Throwable th)
+            {
+                if (stage.isCancelled())
+                {
+                    granted.cancel(false);
+                }
+            }
+        });
+
+        return stage;
+    }
+
     /**
      * Blocking Request a ChannelHandlerContext from the pool
      *
@@ -56,6 +180,226 @@ public interface PoolProvider
     LeasedChannel lease(int leaseTime, TimeUnit units, Object userObject)
         throws PoolProviderException;
 
+    /**
+     * Blocking request with a bound on how long it waits to be granted.
+     * <p>The default waits on leaseAsync() and cancels the request when the time is up, with a zero timeout a pool
+     * may already have started a connection for it.</p>
+     *
+     * @param leaseTime      The lease time.
+     * @param units          Time units.
+     * @param userObject     The user object.
+     * @param acquireTimeout How long the request may wait for a channel, zero to fail unless a channel is idle.
+     * @param acquireUnits   Acquire timeout units.
+     * @return The leased channel.
+     * @throws LeaseAcquireTimeoutException if the lease was not granted in time.
+     * @throws PoolProviderException
+     */
+    default LeasedChannel lease(int leaseTime, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits)
+        throws PoolProviderException
+    {
+        Future<LeasedChannel> request = leaseAsync(leaseTime, units, userObject);
+        try
+        {
+            try
+            {
+                return request.get(acquireTimeout, acquireUnits);
+            }
+            catch (TimeoutException e)
+            {
+                try
+                {
+                    if (request.cancel(false))
+                    {
+                        throw new LeaseAcquireTimeoutException("Lease not granted within acquire timeout.");
+                    }
+                }
+                catch (IllegalStateException ex)
+                {
+                    // Granted as it timed out.
+                }
+                return request.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PoolProviderException("Interrupted: " + e.getMessage(), e);
+        }
+        catch (ExecutionException e)
+        {
+            throw new PoolProviderException("Execution Failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Request a lease as a CompletionStage with a bound on how long it waits to be granted.
+     * The stage fails with a LeaseAcquireTimeoutException if the lease was not granted in time.
+     * <p>There is no default, a CompletionStage on Java 8 has no timer to bound the wait with.</p>
+     *
+     * @param time           The lease time.
+     * @param units          Time units.
+     * @param userObject     The user object
+     * @param acquireTimeout How long the request may wait for a channel, zero to fail unless a channel is idle.
+     * @param acquireUnits   Acquire timeout units.
+     * @return A stage that completes with the leased channel.
+     */
+    CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits);
+
+    /**
+     * Blocking request for a channel with a tag, e.g. a session already authenticated as a user.
+     * <p>Only channels carrying an equal tag are granted. When none is idle and the pool has capacity a connection is
+     * opened for the request, it starts out with the tag so PostConnectEstablish can see it through getTag().</p>
+     *
+     * <p>The default does not support tags and throws UnsupportedOperationException.</p>
+     *
+     * @param tag        The tag, not null.
+     * @param leaseTime  The lease time.
+     * @param units      Time units.
+     * @param userObject The user object.
+     * @return A channel with the tag.
+     * @throws PoolProviderException
+     */
+    default LeasedChannel lease(Object tag, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        throw new UnsupportedOperationException("Tagged leases are not supported.");
+    }
+
+    /**
+     * Tag a channel, null removes the tag.
+     * <p>Call this while the channel is leased or from PostConnectEstablish, the tag takes effect when the channel
+     * goes back to the idle list. Untagged leases only take tagged channels when no untagged channel is idle.</p>
+     * <p>The default does not support tags and throws UnsupportedOperationException.</p>
+     *
+     * @param channel The channel, either the leased channel or the inner channel.
+     * @param tag     The tag, compared with equals().
+     */
+    default void tag(Channel channel, Object tag)
+    {
+        throw new UnsupportedOperationException("Tagged leases are not supported.");
+    }
+
+    /**
+     * <p>The default does not support tags and returns null.</p>
+     *
+     * @param channel The channel, either the leased channel or the inner channel.
+     * @return The tag of the channel, null if it has none.
+     */
+    default Object getTag(Channel channel)
+    {
+        return null;
+    }
+
+    /**
+     * Lease an idle channel if there is one right now, never waits.
+     * <p>No connection is opened and the request is not queued, if other requests are already waiting this
+     * returns null rather than step in front of them.</p>
+     * <p>The default cancels a leaseAsync() request that was not granted straight away, a pool may already have
+     * started a connection for it.</p>
+     *
+     * @param leaseTime  The lease time.
+     * @param units      Time units.
+     * @param userObject The user object.
+     * @return The leased channel or null.
+     */
+    default LeasedChannel tryLease(int leaseTime, TimeUnit units, Object userObject)
+    {
+        Future<LeasedChannel> request = leaseAsync(leaseTime, units, userObject);
+        try
+        {
+            if (!request.isDone() && request.cancel(false))
+            {
+                return null;
+            }
+        }
+        catch (IllegalStateException e)
+        {
+            // Granted as it was canceled.
+        }
+
+        try
+        {
+            return request.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ExecutionException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Blocking request for a number of leases, all or nothing.
+     * The leases are granted together in one pass on the decoupler, connections needed to make up the count are
+     * opened in parallel.
+     * <p>The default leases one channel at a time and yields them all if one fails, it does not check count against
+     * the size of the pool.</p>
+     *
+     * @param count      The number of leases.
+     * @param leaseTime  The lease time.
+     * @param units      Time units.
+     * @param userObject The user object, shared by all the leases.
+     * @return Exactly count leased channels.
+     * @throws PoolProviderException if count can never be satisfied by this pool.
+     */
+    default List<LeasedChannel> leaseMany(int count, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        List<LeasedChannel> out = new ArrayList<>();
+        try
+        {
+            for (int t = 0; t < count; t++)
+            {
+                out.add(lease(leaseTime, units, userObject));
+            }
+        }
+        catch (PoolProviderException | RuntimeException e)
+        {
+            for (LeasedChannel lc : out)
+            {
+                try
+                {
+                    this.yield(lc);
+                }
+                catch (PoolProviderException ex)
+                {
+                    // The pool no longer knows the channel.
+                }
+            }
+            throw e;
+        }
+        return out;
+    }
+
+    /**
+     * Blocking request for up to count leases, best effort.
+     * Idle channels are leased and connections are opened for the remainder where the pool has capacity, the
+     * request never waits for leased channels to be yielded.
+     * <p>The default only takes what tryLease() grants.</p>
+     *
+     * @param count      The maximum number of leases.
+     * @param leaseTime  The lease time.
+     * @param units      Time units.
+     * @param userObject The user object, shared by all the leases.
+     * @return Between zero and count leased channels.
+     * @throws PoolProviderException
+     */
+    default List<LeasedChannel> leaseUpTo(int count, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        List<LeasedChannel> out = new ArrayList<>();
+        LeasedChannel lc;
+        while (out.size() < count && (lc = tryLease(leaseTime, units, userObject)) != null)
+        {
+            out.add(lc);
+        }
+        return out;
+    }
+
     /**
      * Release a channel back to the pool
      *
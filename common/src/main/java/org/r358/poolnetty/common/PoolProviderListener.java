@@ -44,7 +44,7 @@ public interface PoolProviderListener
     void stopped(PoolProvider provider);
 
     /**
-     * Called when a lease is requested.
+     * Called when a lease is requested, on the thread requesting it.
      *
      * @param provider   The Provider.
      * @param leaseTime  The time of the lease.
@@ -55,6 +55,8 @@ public interface PoolProviderListener
 
     /**
      * Called when a lease is actually granted.
+     * <p>A lease taken straight from the idle channels is reported on the leasing thread, others on the decoupler,
+     * so calls can overlap.</p>
      *
      * @param provider   The provider.
      * @param channel    The channel.
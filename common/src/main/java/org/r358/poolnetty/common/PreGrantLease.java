@@ -25,6 +25,8 @@ import io.netty.channel.Channel;
  * Intercept the lease granting process before the context is leased.
  * <p>Gives implementers the option of stopping a lease from occurring
  * or perhaps firing a message down the pipe to wake the other end up.</p>
+ * <p>This is called on the decoupler, or on the leasing thread when a lease is taken straight from the idle
+ * channels, so calls from different threads can overlap and implementations must be thread safe.</p>
  */
 public interface PreGrantLease
 {
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.common;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time source of a pool, lease expiry, ephemeral lifespans and acquire deadlines are all in its milliseconds.
+ * <p>Tests can supply a ticker with virtual time, see SimulatedScheduler in the pool module.</p>
+ */
+public interface Ticker
+{
+    /**
+     * Wall clock time, the default. Deadlines in LeasedContext and AvailableChannel can be compared with
+     * System.currentTimeMillis().
+     */
+    Ticker SYSTEM = new Ticker()
+    {
+        @Override
+        public long millis()
+        {
+            return System.currentTimeMillis();
+        }
+    };
+
+    /**
+     * Monotonic time from System.nanoTime(), unaffected by changes to the wall clock. A LeaseExpiryReaper used with
+     * it must implement reapHarvest(List, long) rather than read the wall clock itself.
+     */
+    Ticker MONOTONIC = new Ticker()
+    {
+        @Override
+        public long millis()
+        {
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+        }
+    };
+
+    /**
+     * @return The current time in milliseconds, only differences between values are meaningful.
+     */
+    long millis();
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.flow;
+
+import org.r358.poolnetty.common.LeaseListener;
+import org.r358.poolnetty.common.LeasedChannel;
+import org.r358.poolnetty.common.PoolProvider;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes leases from a pool as subscribers ask for them.
+ * <p>Each subscription asks the pool for at most as many leases as its subscriber has requested and never has more
+ * than maxOutstanding lease requests in the pool at once, further requests are made as leases are delivered. A
+ * subscriber owns the channels it receives and must yield them.</p>
+ * <p>Leases granted after a subscription is canceled are yielded straight back. A failed lease request ends the
+ * subscription with onError, the subscription never completes by itself.</p>
+ */
+public class LeasePublisher
+    implements Flow.Publisher<LeasedChannel>
+{
+    private final PoolProvider poolProvider;
+    private final int leaseTime;
+    private final TimeUnit units;
+    private final Object userObject;
+    private final int maxOutstanding;
+
+    /**
+     * @param poolProvider   The pool.
+     * @param leaseTime      The lease time of each lease.
+     * @param units          The lease time units.
+     * @param userObject     The user object of each lease.
+     * @param maxOutstanding The most lease requests a subscription has in the pool at once.
+     */
+    public LeasePublisher(PoolProvider poolProvider, int leaseTime, TimeUnit units, Object userObject, int maxOutstanding)
+    {
+        if (maxOutstanding < 1)
+        {
+            throw new IllegalArgumentException("maxOutstanding must be at least 1.");
+        }
+
+        this.poolProvider = poolProvider;
+        this.leaseTime = leaseTime;
+        this.units = units;
+        this.userObject = userObject;
+        this.maxOutstanding = maxOutstanding;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super LeasedChannel> subscriber)
+    {
+        if (subscriber == null)
+        {
+            throw new NullPointerException("subscriber");
+        }
+        subscriber.onSubscribe(new LeaseSubscription(subscriber));
+    }
+
+
+    private class LeaseSubscription
+        implements Flow.Subscription, LeaseListener
+    {
+        private final Flow.Subscriber<? super LeasedChannel> subscriber;
+
+        /**
+         * Requested by the subscriber and not yet asked of the pool.
+         */
+        private final AtomicLong demand = new AtomicLong();
+
+        /**
+         * Lease requests in the pool.
+         */
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger fillWip = new AtomicInteger();
+
+        private final Set<Future<LeasedChannel>> pending = ConcurrentHashMap.newKeySet();
+
+        /**
+         * Granted leases waiting to be delivered, signals to the subscriber are serialized by drain().
+         */
+        private final ConcurrentLinkedQueue<LeasedChannel> ready = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger wip = new AtomicInteger();
+
+        private volatile boolean cancelled = false;
+        private volatile Throwable error = null;
+        private boolean terminated = false;
+
+        private LeaseSubscription(Flow.Subscriber<? super LeasedChannel> subscriber)
+        {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n)
+        {
+            if (cancelled)
+            {
+                return;
+            }
+
+            if (n <= 0)
+            {
+                fail(new IllegalArgumentException("Request for " + n + " leases, must be positive."));
+                return;
+            }
+
+            long d;
+            do
+            {
+                d = demand.get();
+            }
+            while (!demand.compareAndSet(d, d + n < 0 ? Long.MAX_VALUE : d + n));
+
+            fill();
+        }
+
+        @Override
+        public void cancel()
+        {
+            cancelled = true;
+
+            for (Future<LeasedChannel> f : pending)
+            {
+                try
+                {
+                    f.cancel(false);
+                }
+                catch (IllegalStateException ex)
+                {
+                    // Granted, the lease arrives through leaseRequest() and is yielded.
+                }
+            }
+            pending.clear();
+            drain();
+        }
+
+        @Override
+        public void leaseRequest(boolean success, LeasedChannel channel, Throwable th)
+        {
+            if (!success)
+            {
+                if (!cancelled)
+                {
+                    fail(th);
+                }
+                return;
+            }
+
+            for (Future<LeasedChannel> f : pending)
+            {
+                if (f.isDone())
+                {
+                    pending.remove(f);
+                }
+            }
+            inFlight.decrementAndGet();
+            ready.offer(channel);
+            drain();
+            fill();
+        }
+
+        /**
+         * Ask the pool for leases while there is demand and room for another request.
+         * <p>A lease can be granted inside leaseAsync(), calls made while filling are folded into the running loop
+         * rather than recursing.</p>
+         */
+        private void fill()
+        {
+            if (fillWip.getAndIncrement() != 0)
+            {
+                return;
+            }
+
+            do
+            {
+                while (!cancelled && inFlight.get() < maxOutstanding && takeDemand())
+                {
+                    inFlight.incrementAndGet();
+
+                    Future<LeasedChannel> future = poolProvider.leaseAsync(leaseTime, units, userObject, this);
+                    pending.add(future);
+                    if (future.isDone())
+                    {
+                        pending.remove(future);
+                    }
+                    else if (cancelled)
+                    {
+                        cancel(); // Canceled while the request was made.
+                    }
+                }
+            }
+            while (fillWip.decrementAndGet() != 0);
+        }
+
+        /**
+         * @return true if one unit of demand was taken.
+         */
+        private boolean takeDemand()
+        {
+            for (; ; )
+            {
+                long d = demand.get();
+                if (d == 0)
+                {
+                    return false;
+                }
+
+                if (d == Long.MAX_VALUE || demand.compareAndSet(d, d - 1))
+                {
+                    return true;
+                }
+            }
+        }
+
+        private void fail(Throwable th)
+        {
+            error = th;
+            cancel();
+        }
+
+        /**
+         * Deliver ready leases and the error, on one thread at a time.
+         */
+        private void drain()
+        {
+            if (wip.getAndIncrement() != 0)
+            {
+                return;
+            }
+
+            do
+            {
+                LeasedChannel lc;
+                while ((lc = ready.poll()) != null)
+                {
+                    if (cancelled)
+                    {
+                        yieldQuietly(lc);
+                    }
+                    else
+                    {
+                        subscriber.onNext(lc);
+                    }
+                }
+
+                if (error != null && !terminated)
+                {
+                    terminated = true;
+                    subscriber.onError(error);
+                }
+            }
+            while (wip.decrementAndGet() != 0);
+        }
+
+        private void yieldQuietly(LeasedChannel lc)
+        {
+            try
+            {
+                lc.yield();
+            }
+            catch (Exception ex)
+            {
+                // The pool has already dropped the lease.
+            }
+        }
+    }
+}
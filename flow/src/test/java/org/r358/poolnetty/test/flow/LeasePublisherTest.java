@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.flow;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalEventLoopGroup;
+import io.netty.channel.local.LocalServerChannel;
+import junit.framework.TestCase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.flow.LeasePublisher;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the lease publisher only asks the pool for what subscribers request.
+ */
+@RunWith(JUnit4.class)
+public class LeasePublisherTest
+{
+    private EventLoopGroup elg;
+    private Channel server;
+    private NettyConnectionPool ncp;
+
+    @Before
+    public void setUp()
+        throws Exception
+    {
+        final LocalAddress address = new LocalAddress("lease-publisher-test");
+        elg = new LocalEventLoopGroup();
+
+        server = new ServerBootstrap()
+            .group(elg)
+            .channel(LocalServerChannel.class)
+            .childHandler(new ChannelInitializer()
+            {
+                @Override
+                protected void initChannel(Channel ch)
+                    throws Exception
+                {
+                    ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                }
+            })
+            .bind(address).sync().channel();
+
+        NettyConnectionPoolBuilder ncb = new NettyConnectionPoolBuilder(1, 0, 1000);
+
+        ncb.withBootstrapProvider(new BootstrapProvider()
+        {
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider)
+            {
+                return new Bootstrap().group(elg).channel(LocalChannel.class);
+            }
+        });
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+                return new ConnectionInfo(address, null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("discard", new ChannelInboundHandlerAdapter());
+                    }
+                });
+            }
+        });
+
+        ncp = ncb.build();
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown()
+        throws Exception
+    {
+        ncp.stop(true);
+        server.close().sync();
+        elg.shutdownGracefully();
+    }
+
+
+    /**
+     * Leases arrive as the single channel is yielded and no more than requested are delivered.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDeliversDemand()
+        throws Exception
+    {
+        TestSubscriber subscriber = new TestSubscriber();
+        new LeasePublisher(ncp, 10, TimeUnit.SECONDS, "flow", 2).subscribe(subscriber);
+        subscriber.subscription.request(3);
+
+        for (int t = 0; t < 3; t++)
+        {
+            LeasedChannel lc = subscriber.leases.poll(5, TimeUnit.SECONDS);
+            TestCase.assertNotNull("Lease " + t + " not delivered.", lc);
+            TestCase.assertTrue(ncp.getLaneStats().get(0).getDepth() <= 2);
+            lc.yield();
+        }
+
+        TestCase.assertNull(subscriber.leases.poll(200, TimeUnit.MILLISECONDS));
+        TestCase.assertNull(subscriber.error);
+
+        //
+        // Nothing is left queued in the pool.
+        //
+        LeasedChannel direct = ncp.lease(10, TimeUnit.SECONDS, "direct", 5, TimeUnit.SECONDS);
+        direct.yield();
+    }
+
+
+    /**
+     * Leases granted after cancel go back to the pool.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCancelReturnsLeases()
+        throws Exception
+    {
+        TestSubscriber subscriber = new TestSubscriber();
+        new LeasePublisher(ncp, 10, TimeUnit.SECONDS, "flow", 4).subscribe(subscriber);
+        subscriber.subscription.request(4);
+
+        LeasedChannel first = subscriber.leases.poll(5, TimeUnit.SECONDS);
+        TestCase.assertNotNull(first);
+
+        subscriber.subscription.cancel();
+        first.yield();
+
+        LeasedChannel direct = ncp.lease(10, TimeUnit.SECONDS, "direct", 5, TimeUnit.SECONDS);
+        TestCase.assertNull(subscriber.leases.poll(200, TimeUnit.MILLISECONDS));
+        direct.yield();
+        TestCase.assertNull(subscriber.error);
+    }
+
+
+    /**
+     * A non positive request is an error.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNonPositiveRequest()
+        throws Exception
+    {
+        TestSubscriber subscriber = new TestSubscriber();
+        new LeasePublisher(ncp, 10, TimeUnit.SECONDS, "flow", 1).subscribe(subscriber);
+        subscriber.subscription.request(0);
+        TestCase.assertTrue(subscriber.error instanceof IllegalArgumentException);
+    }
+
+
+    private static class TestSubscriber
+        implements Flow.Subscriber<LeasedChannel>
+    {
+        private final LinkedBlockingQueue<LeasedChannel> leases = new LinkedBlockingQueue<>();
+        private volatile Flow.Subscription subscription;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription)
+        {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(LeasedChannel item)
+        {
+            leases.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable)
+        {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete()
+        {
+
+        }
+    }
+}
@@ -21,27 +21,32 @@ package org.r358.poolnetty.pool;
 
 import io.netty.channel.Channel;
 
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A wrapper for the context.
- * Not thread safe.
+ * <p>Apart from claim() this is not thread safe, an AvailableChannel can be taken from an idle list by a leasing
+ * thread or the decoupler, whoever wins claim() owns it.</p>
+ * <p>There is one AvailableChannel per connection, it is claimed when the channel is leased and re-armed by the
+ * decoupler when the channel is yielded. Each re-arm starts a new idle cycle.</p>
  */
 public class AvailableChannel
 {
-    private final long closeAfter;
+    private long closeAfter;
     private final Channel channel;
     private final int lifespan;
     private final boolean immortal;
-    private final ScheduledFuture reaper;
+    private final AtomicBoolean claimed = new AtomicBoolean(false);
+    private volatile int cycle = 0;
+    private int stripe;
+    private Object tag;
 
-    public AvailableChannel(long closeAfter, Channel channel, int lifespan, boolean immortal, ScheduledFuture reaper)
+    public AvailableChannel(long closeAfter, Channel channel, int lifespan, boolean immortal)
     {
         this.closeAfter = closeAfter;
         this.channel = channel;
         this.lifespan = lifespan;
         this.immortal = immortal;
-        this.reaper = reaper;
     }
 
     public Channel getChannel()
@@ -50,23 +55,50 @@ public class AvailableChannel
     }
 
 
-    public void cancelReaper()
+    /**
+     * Claim this channel, only one caller will succeed per idle cycle.
+     *
+     * @return true if the caller now owns this channel.
+     */
+    public boolean claim()
+    {
+        return claimed.compareAndSet(false, true);
+    }
+
+    public boolean isClaimed()
+    {
+        return claimed.get();
+    }
+
+    /**
+     * Make a claimed channel available again, only the owner may call this.
+     *
+     * @param closeAfter The new time after which an ephemeral channel expires.
+     */
+    public void rearm(long closeAfter)
+    {
+        this.closeAfter = closeAfter;
+        cycle++;
+        claimed.set(false); // Publishes the above.
+    }
+
+    /**
+     * @return The number of times this channel has been re-armed.
+     */
+    public int getCycle()
     {
-        if (reaper != null)
-        {
-            reaper.cancel(false); // Should not be an issue as it is all running from the same decoupler within the pool.
-        }
+        return cycle;
     }
 
     /**
      * Has this context expired.
      *
-     * @param notAfter Not after.
-     * @return
+     * @param now The current time.
+     * @return true if this is an ephemeral channel that has outlived its idle lifespan.
      */
-    public boolean expired(long notAfter)
+    public boolean expired(long now)
     {
-        return !immortal & notAfter < closeAfter;
+        return !immortal && now > closeAfter;
     }
 
     public boolean isImmortal()
@@ -74,6 +106,29 @@ public class AvailableChannel
         return immortal;
     }
 
+    public int getStripe()
+    {
+        return stripe;
+    }
+
+    void setStripe(int stripe)
+    {
+        this.stripe = stripe;
+    }
+
+    /**
+     * @return The tag the channel had when it was last made available, null if untagged.
+     */
+    public Object getTag()
+    {
+        return tag;
+    }
+
+    void setTag(Object tag)
+    {
+        this.tag = tag;
+    }
+
     public int getLifespan()
     {
         return lifespan;
@@ -0,0 +1,353 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import org.r358.poolnetty.common.LeasedContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Table of connection state, one slot per connection.
+ * <p>A slot is reserved when a connection starts opening and released once it has closed, in between the slot is
+ * found from the channel through a channel attribute so yield and close do not search anything. The table is sized
+ * for the pool, it only grows if a replacement connection is opened before the one it replaces has closed.</p>
+ * <p>Not thread safe, only used on the decoupler. The exception is slot.getAvailable() which a yielding thread may
+ * read to record the channel as recently used.</p>
+ */
+public class ChannelSlots
+{
+    /**
+     * The state of a connection.
+     */
+    public enum State
+    {
+        FREE, CONNECTING, IDLE, LEASED, CLOSING
+    }
+
+    private static final AttributeKey<Slot> SLOT = AttributeKey.valueOf("poolnetty.slot");
+
+    private static final Comparator<LeasedContext> LEASE_ORDER = new Comparator<LeasedContext>()
+    {
+        @Override
+        public int compare(LeasedContext o1, LeasedContext o2)
+        {
+            return Long.compare(o1.getLeaseID(), o2.getLeaseID());
+        }
+    };
+
+    private Slot[] slots;
+    private int[] free;
+    private int freeCount;
+
+    private int leasedCount = 0;
+    private int ephemeralCount = 0;
+
+    public ChannelSlots(int capacity)
+    {
+        slots = new Slot[0];
+        free = new int[0];
+        grow(Math.max(1, capacity));
+    }
+
+    /**
+     * Reserve a slot for a connection that is about to be opened.
+     *
+     * @param immortal True if the connection is immortal.
+     * @return The slot, in the CONNECTING state.
+     */
+    public Slot reserve(boolean immortal)
+    {
+        if (freeCount == 0)
+        {
+            grow(slots.length * 2);
+        }
+
+        Slot slot = slots[free[--freeCount]];
+        slot.state = State.CONNECTING;
+        slot.immortal = immortal;
+        if (!immortal)
+        {
+            ephemeralCount++;
+        }
+        return slot;
+    }
+
+    /**
+     * Attach an established channel to its slot.
+     *
+     * @param slot    The slot.
+     * @param channel The channel.
+     */
+    public void bind(Slot slot, Channel channel)
+    {
+        slot.channel = channel;
+        slot.available = null;
+        channel.attr(SLOT).set(slot);
+    }
+
+    /**
+     * @param channel The channel.
+     * @return The slot of the channel or null if the channel is not an open connection in this table.
+     */
+    public Slot slotOf(Channel channel)
+    {
+        Slot slot = channel.attr(SLOT).get();
+        if (slot == null || slot.index >= slots.length || slots[slot.index] != slot || slot.channel != channel)
+        {
+            return null;
+        }
+        return slot;
+    }
+
+    /**
+     * @param channel The channel.
+     * @param leaseID The lease id.
+     * @return The slot of the channel if it is currently out on that lease, otherwise null.
+     */
+    public Slot leased(Channel channel, long leaseID)
+    {
+        Slot slot = slotOf(channel);
+        if (slot == null || slot.state != State.LEASED || slot.lease.getLeaseID() != leaseID)
+        {
+            return null;
+        }
+        return slot;
+    }
+
+    /**
+     * Any thread, no checks.
+     *
+     * @param channel The channel.
+     * @return The slot last attached to the channel, or null.
+     */
+    public static Slot peek(Channel channel)
+    {
+        return channel.attr(SLOT).get();
+    }
+
+    /**
+     * Mark a slot idle.
+     *
+     * @param slot      The slot.
+     * @param available The AvailableChannel of the connection.
+     */
+    public void idle(Slot slot, AvailableChannel available)
+    {
+        leave(slot);
+        slot.available = available;
+        slot.state = State.IDLE;
+    }
+
+    /**
+     * Mark a slot leased.
+     *
+     * @param slot  The slot.
+     * @param lease The lease.
+     */
+    public void lease(Slot slot, LeasedContext lease)
+    {
+        leave(slot);
+        slot.lease = lease;
+        slot.state = State.LEASED;
+        leasedCount++;
+    }
+
+    /**
+     * Mark a slot as closing, it can no longer be leased or yielded.
+     *
+     * @param slot The slot.
+     */
+    public void closing(Slot slot)
+    {
+        leave(slot);
+        slot.state = State.CLOSING;
+    }
+
+    /**
+     * Release a slot for reuse.
+     *
+     * @param slot The slot.
+     */
+    public void release(Slot slot)
+    {
+        if (slot.state == State.FREE)
+        {
+            return;
+        }
+
+        leave(slot);
+        if (!slot.immortal)
+        {
+            ephemeralCount--;
+        }
+
+        if (slot.channel != null && slot.channel.attr(SLOT).get() == slot)
+        {
+            slot.channel.attr(SLOT).set(null);
+        }
+
+        slot.channel = null;
+        slot.available = null;
+        slot.state = State.FREE;
+        free[freeCount++] = slot.index;
+    }
+
+    /**
+     * @return The number of leased connections.
+     */
+    public int leasedCount()
+    {
+        return leasedCount;
+    }
+
+    /**
+     * @return The number of ephemeral connections that are opening, idle, leased or closing.
+     */
+    public int ephemeralCount()
+    {
+        return ephemeralCount;
+    }
+
+    /**
+     * @return The current leases, oldest first.
+     */
+    public List<LeasedContext> leases()
+    {
+        if (leasedCount == 0)
+        {
+            return Collections.emptyList();
+        }
+
+        List<LeasedContext> out = new ArrayList<>(leasedCount);
+        for (Slot slot : slots)
+        {
+            if (slot.state == State.LEASED)
+            {
+                out.add(slot.lease);
+            }
+        }
+        Collections.sort(out, LEASE_ORDER);
+        return out;
+    }
+
+    /**
+     * @return The idle channels, including those a leasing thread has claimed but not yet recorded as leased.
+     */
+    public List<Channel> idleChannels()
+    {
+        List<Channel> out = new ArrayList<>();
+        for (Slot slot : slots)
+        {
+            if (slot.state == State.IDLE)
+            {
+                out.add(slot.channel);
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Clear the lease of a slot that is leaving its current state.
+     */
+    private void leave(Slot slot)
+    {
+        if (slot.state == State.LEASED)
+        {
+            leasedCount--;
+        }
+        slot.lease = null;
+    }
+
+    private void grow(int capacity)
+    {
+        int from = slots.length;
+        slots = Arrays.copyOf(slots, capacity);
+        free = Arrays.copyOf(free, capacity);
+
+        //
+        // Lowest index on top of the free stack.
+        //
+        for (int t = capacity - 1; t >= from; t--)
+        {
+            slots[t] = new Slot(t);
+            free[freeCount++] = t;
+        }
+    }
+
+    /**
+     * The state record of one connection.
+     */
+    public static class Slot
+    {
+        private final int index;
+        private State state = State.FREE;
+        private boolean immortal;
+        private Channel channel;
+        private volatile AvailableChannel available;
+        private LeasedContext lease;
+
+        private Slot(int index)
+        {
+            this.index = index;
+        }
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        public State getState()
+        {
+            return state;
+        }
+
+        public boolean isImmortal()
+        {
+            return immortal;
+        }
+
+        public Channel getChannel()
+        {
+            return channel;
+        }
+
+        /**
+         * @return The AvailableChannel of the connection, created when it first became idle.
+         */
+        public AvailableChannel getAvailable()
+        {
+            return available;
+        }
+
+        /**
+         * @return The lease when LEASED.
+         */
+        public LeasedContext getLease()
+        {
+            return lease;
+        }
+    }
+}
@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool;
+
+import io.netty.channel.EventLoop;
+import org.r358.poolnetty.common.PoolProvider;
+import org.r358.poolnetty.common.PreGrantLease;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock free collection of idle channels.
+ * <p>The collection is split into stripes, a thread has a home stripe selected from its id so threads on different
+ * cores mostly work on different stripes. A take looks in the home stripe first and only steals from the other
+ * stripes when the home stripe has nothing to offer.</p>
+ * <p>Within a stripe channels are offered and taken from the head so the most recently used channel is leased first,
+ * the oldest idle channels collect at the tail where ephemeral channels can age out.</p>
+ * <p>With event loop affinity each event loop is given its own stripe and channels are always returned to the stripe
+ * of their event loop. A take from an event loop thread first looks for a channel on that loop, then any channel
+ * in the loops stripe and then steals as usual.</p>
+ * <p>Any thread can take a channel, an entry is only handed out once its claim() succeeds.</p>
+ * <p>Taking and returning are O(1) at the head of a stripe. A channel that is rejected by the PreGrantLease is
+ * stepped over and stays where it is. Removing a specific channel only claims it, the dead entry is unlinked by
+ * the next take that passes over it or by a sweep once dead entries outnumber live ones.</p>
+ * <p>An AvailableChannel is re-armed and offered again each time its channel is yielded, so a channel that is going
+ * to be leased must be removed with take() or unlink() and not left behind as a dead entry.</p>
+ */
+public class IdleChannels
+    implements Iterable<AvailableChannel>
+{
+    private final ConcurrentLinkedDeque<AvailableChannel>[] stripes;
+    private final int mask;
+
+    /**
+     * Used to spread new channels over the stripes.
+     */
+    private final AtomicInteger spread = new AtomicInteger();
+
+    /**
+     * Number of unclaimed channels.
+     */
+    private final AtomicInteger live = new AtomicInteger();
+
+    /**
+     * Number of entries removed in place since the last sweep, some of these may since have been unlinked by a take.
+     */
+    private final AtomicInteger dead = new AtomicInteger();
+
+    private final boolean eventLoopAffinity;
+
+    /**
+     * Stripe assigned to each event loop when using event loop affinity.
+     */
+    private final ConcurrentHashMap<EventLoop, Integer> loopStripes = new ConcurrentHashMap<>();
+    private final AtomicInteger nextLoopStripe = new AtomicInteger();
+
+    /**
+     * Per thread, the stripe of the event loop the thread belongs to (-1 for none) and the number of known
+     * event loops when that was worked out.
+     */
+    private final ThreadLocal<int[]> callerLoopStripe = new ThreadLocal<int[]>()
+    {
+        @Override
+        protected int[] initialValue()
+        {
+            return new int[]{-1, 0};
+        }
+    };
+
+    /**
+     * Create with one stripe per available processor.
+     */
+    public IdleChannels()
+    {
+        this(Runtime.getRuntime().availableProcessors(), false);
+    }
+
+    /**
+     * Create with a number of stripes, this is rounded up to a power of two.
+     *
+     * @param stripeCount       The number of stripes.
+     * @param eventLoopAffinity true to keep channels in a stripe belonging to their event loop.
+     */
+    @SuppressWarnings("unchecked")
+    public IdleChannels(int stripeCount, boolean eventLoopAffinity)
+    {
+        this.eventLoopAffinity = eventLoopAffinity;
+
+        int size = 1;
+        while (size < stripeCount)
+        {
+            size <<= 1;
+        }
+
+        stripes = (ConcurrentLinkedDeque<AvailableChannel>[])new ConcurrentLinkedDeque<?>[size];
+        for (int t = 0; t < size; t++)
+        {
+            stripes[t] = new ConcurrentLinkedDeque<>();
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * The home stripe of the calling thread, with event loop affinity the stripe of its event loop if it has one.
+     *
+     * @return The stripe index.
+     */
+    public int homeStripe()
+    {
+        if (eventLoopAffinity)
+        {
+            int loopStripe = callerLoopStripe();
+            if (loopStripe >= 0)
+            {
+                return loopStripe;
+            }
+        }
+
+        long id = Thread.currentThread().getId();
+        int h = (int)(id ^ (id >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Return a channel to the home stripe of the calling thread.
+     *
+     * @param ac The available channel.
+     */
+    public void offer(AvailableChannel ac)
+    {
+        offer(ac, homeStripe());
+    }
+
+    /**
+     * Return a channel to a specific stripe, used when the channel is offered on behalf of another thread.
+     * With event loop affinity the channel always goes to the stripe of its event loop.
+     *
+     * @param ac     The available channel.
+     * @param stripe The stripe index, see homeStripe().
+     */
+    public void offer(AvailableChannel ac, int stripe)
+    {
+        if (eventLoopAffinity)
+        {
+            stripe = loopStripe(ac.getChannel().eventLoop());
+        }
+
+        ac.setStripe(stripe & mask);
+        stripes[stripe & mask].offerFirst(ac);
+        live.incrementAndGet();
+    }
+
+    /**
+     * Add a new channel, new channels are spread evenly over the stripes.
+     *
+     * @param ac The available channel.
+     */
+    public void add(AvailableChannel ac)
+    {
+        offer(ac, spread.getAndIncrement());
+    }
+
+    /**
+     * Take the first channel that the preGrantLease allows and this thread manages to claim.
+     *
+     * @param preGrantLease The pre grant lease.
+     * @param provider      The pool.
+     * @param userObject    The user object of the lease request.
+     * @return A claimed AvailableChannel or null if none were found.
+     */
+    public AvailableChannel take(PreGrantLease preGrantLease, PoolProvider provider, Object userObject)
+    {
+        int home = homeStripe();
+
+        if (eventLoopAffinity && callerLoopStripe() >= 0)
+        {
+            //
+            // Loops can share a stripe, so first look for a channel on the callers own loop.
+            //
+            AvailableChannel ac = take(stripes[home], preGrantLease, provider, userObject, true);
+            if (ac != null)
+            {
+                return ac;
+            }
+        }
+
+        for (int t = 0; t <= mask; t++)
+        {
+            AvailableChannel ac = take(stripes[(home + t) & mask], preGrantLease, provider, userObject, false);
+            if (ac != null)
+            {
+                return ac;
+            }
+        }
+
+        return null;
+    }
+
+    private AvailableChannel take(ConcurrentLinkedDeque<AvailableChannel> stripe, PreGrantLease preGrantLease, PoolProvider provider, Object userObject, boolean callersLoopOnly)
+    {
+        if (stripe.isEmpty())
+        {
+            return null;
+        }
+
+        Iterator<AvailableChannel> it = stripe.iterator();
+        while (it.hasNext())
+        {
+            AvailableChannel ac = it.next();
+
+            if (ac.isClaimed())
+            {
+                it.remove(); // Removed in place or being taken by another thread.
+                continue;
+            }
+
+            if (callersLoopOnly && !ac.getChannel().eventLoop().inEventLoop())
+            {
+                continue;
+            }
+
+            if (preGrantLease.continueToGrantLease(ac.getChannel(), provider, userObject) && ac.claim())
+            {
+                live.decrementAndGet();
+                it.remove();
+                return ac;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The stripe of an event loop, loops are given stripes in the order they are first seen.
+     *
+     * @param loop The event loop.
+     * @return The stripe index.
+     */
+    private int loopStripe(EventLoop loop)
+    {
+        Integer stripe = loopStripes.get(loop);
+        if (stripe == null)
+        {
+            stripe = nextLoopStripe.getAndIncrement() & mask;
+            Integer existing = loopStripes.putIfAbsent(loop, stripe);
+            if (existing != null)
+            {
+                stripe = existing;
+            }
+        }
+        return stripe;
+    }
+
+    /**
+     * The stripe of the event loop the calling thread belongs to, only loops that have had channels in this
+     * collection are known.
+     *
+     * @return The stripe index or -1 if the caller is not on a known event loop.
+     */
+    private int callerLoopStripe()
+    {
+        int[] cached = callerLoopStripe.get();
+        int known = loopStripes.size();
+        if (cached[1] != known)
+        {
+            cached[0] = -1;
+            cached[1] = known;
+            for (Map.Entry<EventLoop, Integer> e : loopStripes.entrySet())
+            {
+                if (e.getKey().inEventLoop())
+                {
+                    cached[0] = e.getValue();
+                    break;
+                }
+            }
+        }
+        return cached[0];
+    }
+
+    /**
+     * Remove a specific channel, used by the decoupler when reaping or closing.
+     * The channel is claimed and left in place for a later take or sweep to unlink.
+     *
+     * @param ac The available channel.
+     * @return true if the channel was idle and has now been removed, false if it has already been taken.
+     */
+    public boolean remove(AvailableChannel ac)
+    {
+        if (!ac.claim())
+        {
+            return false;
+        }
+
+        live.decrementAndGet();
+        if (dead.incrementAndGet() > Math.max(live.get(), stripes.length))
+        {
+            sweep();
+        }
+        return true;
+    }
+
+    /**
+     * Claim a specific channel and unlink it straight away, for channels that will be offered again.
+     * <p>The channel is normally near the head of its stripe.</p>
+     *
+     * @param ac The available channel.
+     * @return true if the channel was idle and has now been removed, false if it has already been taken.
+     */
+    public boolean unlink(AvailableChannel ac)
+    {
+        if (!ac.claim())
+        {
+            return false;
+        }
+
+        live.decrementAndGet();
+        stripes[ac.getStripe()].removeFirstOccurrence(ac);
+        return true;
+    }
+
+    /**
+     * Unlink all claimed entries.
+     */
+    private void sweep()
+    {
+        dead.set(0);
+        for (ConcurrentLinkedDeque<AvailableChannel> stripe : stripes)
+        {
+            Iterator<AvailableChannel> it = stripe.iterator();
+            while (it.hasNext())
+            {
+                if (it.next().isClaimed())
+                {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return live.get() <= 0;
+    }
+
+    /**
+     * Number of idle channels.
+     *
+     * @return the size.
+     */
+    public int size()
+    {
+        return live.get();
+    }
+
+    public int getStripeCount()
+    {
+        return stripes.length;
+    }
+
+    /**
+     * Iterate over the unclaimed channels, this is weakly consistent.
+     *
+     * @return The iterator.
+     */
+    @Override
+    public Iterator<AvailableChannel> iterator()
+    {
+        return new Iterator<AvailableChannel>()
+        {
+            private int stripe = 0;
+            private Iterator<AvailableChannel> current = stripes[0].iterator();
+            private AvailableChannel next = null;
+
+            @Override
+            public boolean hasNext()
+            {
+                while (next == null)
+                {
+                    if (current.hasNext())
+                    {
+                        AvailableChannel ac = current.next();
+                        if (!ac.isClaimed())
+                        {
+                            next = ac;
+                        }
+                    }
+                    else if (++stripe < stripes.length)
+                    {
+                        current = stripes[stripe].iterator();
+                    }
+                    else
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public AvailableChannel next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                AvailableChannel ac = next;
+                next = null;
+                return ac;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException("Use IdleChannels.remove()");
+            }
+        };
+    }
+}
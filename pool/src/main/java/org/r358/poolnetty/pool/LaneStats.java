@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for one lane of lease requests, readable from any thread.
+ */
+public class LaneStats
+{
+    private final int lane;
+    private final int weight;
+    private volatile int depth = 0;
+    private final LongAdder granted = new LongAdder();
+    private final LongAdder waitedGrants = new LongAdder();
+    private final LongAdder waitMillis = new LongAdder();
+
+    public LaneStats(int lane, int weight)
+    {
+        this.lane = lane;
+        this.weight = weight;
+    }
+
+    /**
+     * Record a lease granted to a request in this lane.
+     *
+     * @param waitMillis How long the request waited, 0 if it was granted straight away.
+     */
+    void granted(long waitMillis)
+    {
+        granted.increment();
+        if (waitMillis > 0)
+        {
+            waitedGrants.increment();
+            this.waitMillis.add(waitMillis);
+        }
+    }
+
+    void setDepth(int depth)
+    {
+        this.depth = depth;
+    }
+
+    public int getLane()
+    {
+        return lane;
+    }
+
+    public int getWeight()
+    {
+        return weight;
+    }
+
+    /**
+     * @return The number of requests waiting in this lane.
+     */
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return The number of leases granted to requests in this lane.
+     */
+    public long getGranted()
+    {
+        return granted.sum();
+    }
+
+    /**
+     * @return The number of those leases that had to wait.
+     */
+    public long getWaitedGrants()
+    {
+        return waitedGrants.sum();
+    }
+
+    /**
+     * @return The total time leases in this lane waited to be granted.
+     */
+    public long getWaitMillis()
+    {
+        return waitMillis.sum();
+    }
+
+    /**
+     * @return The mean wait over all leases granted in this lane.
+     */
+    public double getMeanWaitMillis()
+    {
+        long g = granted.sum();
+        return g == 0 ? 0 : (double)waitMillis.sum() / g;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LaneStats{lane=" + lane + ", weight=" + weight + ", depth=" + depth + ", granted=" + getGranted()
+            + ", waitedGrants=" + getWaitedGrants() + ", waitMillis=" + getWaitMillis() + "}";
+    }
+}
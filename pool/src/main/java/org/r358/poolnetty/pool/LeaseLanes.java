@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool;
+
+import java.util.ArrayDeque;
+
+/**
+ * Waiting lease requests split into priority lanes.
+ * <p>Each lane is FIFO. Lane 0 is served first but every lane has a weight, once each waiting lane has been served
+ * its weight in requests a new round starts, so a busy higher lane can not starve the lanes below it.</p>
+ * <p>Only used on the decoupler, except isEmpty() which leasing threads use to see if they may take the fast path.</p>
+ */
+public class LeaseLanes<T>
+{
+    private final ArrayDeque<T>[] lanes;
+    private final int[] weights;
+    private final int[] credits;
+    private final LaneStats[] stats;
+    private volatile int size = 0;
+
+    @SuppressWarnings("unchecked")
+    public LeaseLanes(int[] weights)
+    {
+        if (weights.length == 0)
+        {
+            throw new IllegalArgumentException("At least one lane is required.");
+        }
+
+        this.lanes = (ArrayDeque<T>[])new ArrayDeque<?>[weights.length];
+        this.weights = weights.clone();
+        this.credits = weights.clone();
+        this.stats = new LaneStats[weights.length];
+        for (int t = 0; t < weights.length; t++)
+        {
+            if (weights[t] < 1)
+            {
+                throw new IllegalArgumentException("Lane weights must be at least 1.");
+            }
+            lanes[t] = new ArrayDeque<>();
+            stats[t] = new LaneStats(t, weights[t]);
+        }
+    }
+
+    /**
+     * @return The number of lanes.
+     */
+    public int lanes()
+    {
+        return lanes.length;
+    }
+
+    /**
+     * Add to the back of a lane.
+     *
+     * @param item The request.
+     * @param lane The lane.
+     */
+    public void addLast(T item, int lane)
+    {
+        lanes[lane].addLast(item);
+        size++;
+        stats[lane].setDepth(lanes[lane].size());
+    }
+
+    /**
+     * Put a request back at the front of its lane, for one that was polled and could not be served.
+     * The credit the poll took is given back, a lane is only charged for the requests it is served.
+     *
+     * @param item The request.
+     * @param lane The lane.
+     */
+    public void addFirst(T item, int lane)
+    {
+        if (credits[lane] < weights[lane])
+        {
+            credits[lane]++;
+        }
+
+        lanes[lane].addFirst(item);
+        size++;
+        stats[lane].setDepth(lanes[lane].size());
+    }
+
+    /**
+     * @return The request that pollFirst() would return, or null.
+     */
+    public T peekFirst()
+    {
+        int lane = nextLane();
+        return lane < 0 ? null : lanes[lane].peekFirst();
+    }
+
+    /**
+     * @return The next request to serve, or null if none are waiting.
+     */
+    public T pollFirst()
+    {
+        int lane = nextLane();
+        if (lane < 0)
+        {
+            return null;
+        }
+
+        credits[lane]--;
+        T item = lanes[lane].pollFirst();
+        size--;
+        stats[lane].setDepth(lanes[lane].size());
+        return item;
+    }
+
+    /**
+     * Remove a request.
+     *
+     * @param item The request.
+     * @param lane The lane it was added to.
+     * @return true if it was waiting.
+     */
+    public boolean remove(T item, int lane)
+    {
+        if (!lanes[lane].remove(item))
+        {
+            return false;
+        }
+        size--;
+        stats[lane].setDepth(lanes[lane].size());
+        return true;
+    }
+
+    /**
+     * Any thread.
+     *
+     * @return true if no requests are waiting.
+     */
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param lane The lane.
+     * @return The counters of the lane.
+     */
+    public LaneStats stats(int lane)
+    {
+        return stats[lane];
+    }
+
+    /**
+     * Pick the highest lane that is waiting and still has credit in this round.
+     *
+     * @return The lane or -1 if nothing is waiting.
+     */
+    private int nextLane()
+    {
+        if (size == 0)
+        {
+            return -1;
+        }
+
+        while (true)
+        {
+            for (int t = 0; t < lanes.length; t++)
+            {
+                if (credits[t] > 0 && !lanes[t].isEmpty())
+                {
+                    return t;
+                }
+            }
+
+            //
+            // Every waiting lane has had its share, start a new round.
+            //
+            System.arraycopy(weights, 0, credits, 0, weights.length);
+        }
+    }
+}
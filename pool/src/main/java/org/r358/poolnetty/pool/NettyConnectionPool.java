@@ -21,14 +21,18 @@ package org.r358.poolnetty.pool;
 
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.*;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
 import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.LeaseAcquireTimeoutException;
 import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.concurrent.BatchedTaskQueue;
 import org.r358.poolnetty.pool.concurrent.DecoupledCompletion;
 import org.r358.poolnetty.pool.concurrent.DeferrableTask;
 
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Netty Connection Pool.
@@ -36,6 +40,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * <p>
  * <ol>
  * <li>Uses single threaded executor and all operations on fields in this class are done on that executor.</li>
+ * <li>The exception is the idle channel lists, a lease can claim an idle channel directly on the calling thread
+ * when no other requests are waiting, the decoupler is then told about the lease after the fact.</li>
  * <li>The addition and removal of listeners exists outside the executor and uses a CopyOnWriteArraySet.</li>
  * </ol>
  * </p>
@@ -45,9 +51,69 @@ public class NettyConnectionPool
 {
 
     /**
-     * Task decoupler.
+     * The tag of a channel.
      */
-    private final ScheduledExecutorService decoupler = Executors.newSingleThreadScheduledExecutor();
+    private static final AttributeKey<Object> TAG = AttributeKey.valueOf("poolnetty.tag");
+
+    /**
+     * The pool that opened a channel.
+     */
+    private static final AttributeKey<NettyConnectionPool> POOL = AttributeKey.valueOf("poolnetty.pool");
+
+    /**
+     * The most queued tasks the decoupler runs before timers get a turn.
+     */
+    private static final int TASK_BATCH_SIZE = 256;
+
+    /**
+     * Task decoupler, the pool's own thread, an event loop or a scheduler shared with other pools.
+     */
+    private final ScheduledExecutorService decoupler;
+
+    /**
+     * True when the decoupler is the pool's own thread, anything else outlives the pool.
+     */
+    private final boolean ownDecoupler;
+
+    /**
+     * The decoupler when it is a shared event loop, otherwise null.
+     */
+    private final EventExecutor decouplerLoop;
+
+    /**
+     * Pool commands, drained on the decoupler in batches. Timers are scheduled on the decoupler directly, on an event
+     * loop that is the loop's own scheduler. The pool's own decoupler keeps them in its executor as that is the one
+     * thread the pool has to run them on, the executor's queue then only holds the timers and the next batch.
+     */
+    private final BatchedTaskQueue tasks;
+
+    /**
+     * Tasks on a shared event loop, hands completions back through execute().
+     */
+    private final Executor poolExecutor = new Executor()
+    {
+        @Override
+        public void execute(Runnable command)
+        {
+            NettyConnectionPool.this.execute(command);
+        }
+    };
+
+    /**
+     * Set when the pool has stopped, later tasks are dropped.
+     */
+    private volatile boolean stopped = false;
+
+    /**
+     * True while a pool task runs on a shared event loop, tasks it hands to execute() are queued rather than run
+     * inline. Event loop thread only.
+     */
+    private boolean inPoolTask = false;
+
+    /**
+     * The recurring tasks, canceled on stop as a shared decoupler outlives the pool.
+     */
+    private final List<ScheduledFuture<?>> recurring = new CopyOnWriteArrayList<>();
 
     protected final ConnectionInfoProvider connectionInfoProvider;
     protected final ContextExceptionHandler contextExceptionHandler;
@@ -64,57 +130,89 @@ public class NettyConnectionPool
     protected final int ephemeralLifespanMillis;
     protected final String inboundHandlerName;
     protected final int reaperIntervalMillis;
+    protected final boolean eventLoopAffinity;
+    protected final Ticker ticker;
 
 
     /**
-     * Maps the channel to is current carrier.
+     * The state of every connection, opening, idle, leased or closing.
      */
-    protected final Map<Channel, Object> contextToCarrier = new HashMap<>();
+    protected final ChannelSlots slots;
 
     /**
-     * List of leased contexts.
+     * Listeners.
      */
-    protected final List<LeasedContext> leasedContexts = new ArrayList<>();
+    protected final CopyOnWriteArraySet<PoolProviderListener> listeners = new CopyOnWriteArraySet<>();
+
     /**
-     * Set of leased contexts (fasting searching in yield operation).
+     * Lease required tasks that could not be full filled without blocking the decoupler, in priority lanes.
+     * Only modified on the decoupler, leasing threads check if it is empty before using the fast path.
      */
-    protected final Set<LeasedContext> leasedContextSet = new HashSet<>();
+    protected final LeaseLanes<LeaseRequest<?>> leasesRequired;
 
     /**
-     * Listeners.
+     * Assigns requests to lanes, null when there is only one lane.
      */
-    protected final CopyOnWriteArraySet<PoolProviderListener> listeners = new CopyOnWriteArraySet<>();
+    protected final LaneSelector laneSelector;
+
+    /**
+     * Idle contexts that are immortal and do not age out.
+     */
+    protected final IdleChannels immortalContexts;
+
+    /**
+     * Idle contexts that are ephemeral.
+     */
+    protected final IdleChannels ephemeralContexts;
+
+    /**
+     * Idle contexts that are tagged, by tag. Tagged channels are only in here and not in the lists above.
+     * Only the decoupler adds a tag and it removes the tag again once its last idle channel has left.
+     */
+    protected final ConcurrentHashMap<Object, IdleChannels> taggedContexts = new ConcurrentHashMap<>();
 
     /**
-     * List of lease required tasks that could not be full filled without blocking the decoupler.
+     * Tagged lease requests waiting for a channel with their tag, by tag. They wait apart from leasesRequired so a
+     * tag that can not be served does not hold up the requests behind it. Only modified on the decoupler, a tag is
+     * removed when its last waiter leaves, leasing threads check for the tag before using the fast path.
      */
-    protected final Deque<ObtainLease> leasesRequired = new ArrayDeque<>();
+    private final ConcurrentHashMap<Object, ArrayDeque<ObtainLease>> taggedWaiters = new ConcurrentHashMap<>();
 
     /**
-     * List of contexts that are immortal and do not age out.
+     * Channels recently yielded by each thread, null when disabled.
      */
-    protected final List<AvailableChannel> immortalContexts = new ArrayList<>();
+    protected final RecentChannels recentChannels;
 
     /**
-     * List of contexts that are ephemeral.
+     * Number of open or opening connections on each event loop, only used with event loop affinity.
      */
-    protected final List<AvailableChannel> ephemeralContexts = new ArrayList<>();
+    protected final Map<EventLoop, Integer> connectionsPerLoop = new HashMap<>();
 
     /**
-     * List of connections that are still being opened and created.
+     * The group connections are spread over with event loop affinity, taken from the first bootstrap.
      */
-    protected final List<OpenConnection> connectionsInProgress = new ArrayList<>();
+    private EventLoopGroup affinityGroup = null;
+
+    /**
+     * Ephemeral connections being opened for whoever is waiting, not for one request. Decoupler only.
+     */
+    private int openingForWaiters = 0;
+
+    /**
+     * Channels waiting to be closed, by event loop. Decoupler only.
+     */
+    private final Map<EventLoop, List<Channel>> pendingCloses = new HashMap<>();
 
 
     /**
      * Stop leases from being granted.
      */
-    protected boolean noNewLeases = false;
+    protected volatile boolean noNewLeases = false;
 
     /**
-     * Lease counter, used to give unique id to LeaseChannels. (See note on threading.)
+     * Lease counter, used to give unique id to LeaseChannels.
      */
-    protected long leaseIdCounter = 0;
+    protected final AtomicLong leaseIdCounter = new AtomicLong();
 
 
     protected NettyConnectionPool(
@@ -129,8 +227,31 @@ public class NettyConnectionPool
         PostConnectEstablish postConnectEstablish,
         int immortalCount,
         int maxEphemeralCount,
-        int ephemeralLifespanMillis, String inboundHandlerName, int reaperIntervalMillis)
+        int ephemeralLifespanMillis, String inboundHandlerName, int reaperIntervalMillis,
+        int idleStripes, boolean eventLoopAffinity, int recentChannelsPerThread,
+        int[] laneWeights, LaneSelector laneSelector, ScheduledExecutorService decoupler, Ticker ticker)
     {
+        this.ownDecoupler = decoupler == null;
+        this.decoupler = ownDecoupler ? newDecoupler() : decoupler;
+        this.decouplerLoop = decoupler instanceof EventExecutor ? (EventExecutor)decoupler : null;
+        this.tasks = new BatchedTaskQueue(new Executor()
+        {
+            /**
+             * The queue always submits the same drainer, it is wrapped once rather than for each batch.
+             */
+            private volatile Runnable wrapped;
+
+            @Override
+            public void execute(Runnable drainer)
+            {
+                Runnable w = wrapped;
+                if (w == null)
+                {
+                    wrapped = w = onDecoupler(drainer);
+                }
+                NettyConnectionPool.this.decoupler.execute(w);
+            }
+        }, TASK_BATCH_SIZE, poolExceptionHandler);
         this.connectionInfoProvider = connectionInfoProvider;
         this.contextExceptionHandler = contextExceptionHandler;
         this.leaseExpiredHandler = leaseExpiredHandler;
@@ -145,7 +266,104 @@ public class NettyConnectionPool
         this.ephemeralLifespanMillis = ephemeralLifespanMillis;
         this.inboundHandlerName = inboundHandlerName;
         this.reaperIntervalMillis = reaperIntervalMillis;
+        this.eventLoopAffinity = eventLoopAffinity;
+        this.ticker = ticker;
+        this.slots = new ChannelSlots(immortalCount + maxEphemeralCount);
+        this.immortalContexts = new IdleChannels(idleStripes, eventLoopAffinity);
+        this.ephemeralContexts = new IdleChannels(idleStripes, eventLoopAffinity);
+        this.recentChannels = recentChannelsPerThread > 0 ? new RecentChannels(recentChannelsPerThread) : null;
+        this.leasesRequired = new LeaseLanes<>(laneWeights);
+        this.laneSelector = laneWeights.length > 1 ? laneSelector : null;
+
+    }
+
+    /**
+     * @return The pool's own decoupler thread, canceled acquire timeouts are removed from its queue straight away.
+     */
+    private static ScheduledThreadPoolExecutor newDecoupler()
+    {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    /**
+     * Wrap a task for a shared decoupler so it is dropped once the pool has stopped and, on an event loop, so the
+     * tasks it hands to execute() are queued behind it rather than run inside it.
+     *
+     * @param task The task.
+     * @return The task to submit.
+     */
+    private Runnable onDecoupler(final Runnable task)
+    {
+        if (ownDecoupler)
+        {
+            return task;
+        }
+
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (stopped)
+                {
+                    return;
+                }
+
+                if (decouplerLoop == null)
+                {
+                    task.run();
+                    return;
+                }
+
+                boolean outer = !inPoolTask;
+                inPoolTask = true;
+                try
+                {
+                    task.run();
+                }
+                finally
+                {
+                    if (outer)
+                    {
+                        inPoolTask = false;
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Wrap a timer task, on a scheduler shared by several threads it is handed to execute() so it runs in turn with
+     * the pool's other tasks rather than alongside them.
+     *
+     * @param task The task.
+     * @return The task to schedule.
+     */
+    private Runnable onTimer(final Runnable task)
+    {
+        if (ownDecoupler || decouplerLoop != null)
+        {
+            return onDecoupler(task);
+        }
+
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                NettyConnectionPool.this.execute(task);
+            }
+        };
+    }
 
+    /**
+     * @return true if the caller is on the shared event loop that runs the pool, it must never block on the pool.
+     */
+    private boolean onDecouplerLoop()
+    {
+        return decouplerLoop != null && decouplerLoop.inEventLoop();
     }
 
     @Override
@@ -157,12 +375,54 @@ public class NettyConnectionPool
     @Override
     public Future<LeasedChannel> leaseAsync(int time, TimeUnit units, Object userObject, LeaseListener listener)
     {
-        final ObtainLease ol = new ObtainLease(time, units, userObject);
+        return leaseFuture(time, units, userObject, listener, null, -1);
+    }
+
+    @Override
+    public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject)
+    {
+        return leaseFuture(time, units, userObject, null, null, -1);
+    }
+
+    @Override
+    public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, Executor executor)
+    {
+        return leaseFuture(time, units, userObject, null, executor, -1);
+    }
 
-        final LeaseFuture future = ol.getLeaseFuture(listener);
+    @Override
+    public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits)
+    {
+        return leaseFuture(time, units, userObject, null, null, acquireUnits.toMillis(acquireTimeout));
+    }
 
+    /**
+     * Request a lease that completes a LeaseFuture.
+     *
+     * @param time       The lease time.
+     * @param units      The lease time units.
+     * @param userObject The user object.
+     * @param listener   The listener, may be null.
+     * @param executor   The executor the future is completed on, null to complete on the granting thread.
+     * @param acquireMillis How long the request may wait, negative to wait for ever.
+     * @return The future.
+     */
+    private LeaseFuture leaseFuture(int time, TimeUnit units, Object userObject, LeaseListener listener, Executor executor, long acquireMillis)
+    {
         fireLeaseRequested(time, units, userObject);
 
+        LeasedContext lc = leaseFromIdle(null, time, units, userObject);
+        if (lc != null)
+        {
+            LeaseFuture future = new LeaseFuture(null, listener, executor);
+            future.setValue(new LeasedChannel(lc, lc.getChannel(), this, userObject));
+            return future;
+        }
+
+        final ObtainLease ol = new ObtainLease(null, time, units, userObject, acquireMillis);
+
+        final LeaseFuture future = ol.getLeaseFuture(listener, executor);
+
         NettyConnectionPool.this.execute(ol);
 
         return future;
@@ -172,10 +432,103 @@ public class NettyConnectionPool
     public LeasedChannel lease(final int time, final TimeUnit units, final Object userObject)
         throws PoolProviderException
     {
+        return leaseBlocking(null, time, units, userObject, -1);
+    }
+
+    @Override
+    public LeasedChannel lease(int leaseTime, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits)
+        throws PoolProviderException
+    {
+        return leaseBlocking(null, leaseTime, units, userObject, acquireUnits.toMillis(acquireTimeout));
+    }
+
+    @Override
+    public LeasedChannel lease(Object tag, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        if (tag == null)
+        {
+            throw new IllegalArgumentException("Tag is null.");
+        }
+        return leaseBlocking(tag, leaseTime, units, userObject, -1);
+    }
+
+    @Override
+    public void tag(Channel channel, Object tag)
+    {
+        unwrap(channel).attr(TAG).set(tag);
+    }
+
+    @Override
+    public Object getTag(Channel channel)
+    {
+        return unwrap(channel).attr(TAG).get();
+    }
+
+    static Channel unwrap(Channel channel)
+    {
+        return channel instanceof LeasedChannel ? ((LeasedChannel)channel).getInner() : channel;
+    }
+
+    /**
+     * @param channel The channel.
+     * @return The pool that opened the channel, null if no pool did.
+     */
+    static NettyConnectionPool poolOf(Channel channel)
+    {
+        return unwrap(channel).attr(POOL).get();
+    }
+
+    /**
+     * A hint for routing between pools, any thread.
+     *
+     * @return true if an untagged lease would likely be granted from idle on the calling thread.
+     */
+    boolean hasIdle()
+    {
+        return !noNewLeases && leasesRequired.isEmpty() && (!immortalContexts.isEmpty() || !ephemeralContexts.isEmpty());
+    }
 
-        final ObtainLease ol = new ObtainLease(time, units, userObject);
+    /**
+     * A hint for routing between pools, any thread.
+     *
+     * @param tag The tag.
+     * @return true if a lease for the tag would likely be granted from idle on the calling thread.
+     */
+    boolean hasIdle(Object tag)
+    {
+        IdleChannels idle = taggedContexts.get(tag);
+        return !noNewLeases && !taggedWaiters.containsKey(tag) && idle != null && !idle.isEmpty();
+    }
 
+    /**
+     * Request a lease and wait for it.
+     *
+     * @param tag           The tag the channel must have, null for any channel.
+     * @param time          The lease time.
+     * @param units         The lease time units.
+     * @param userObject    The user object.
+     * @param acquireMillis How long the request may wait, negative to wait for ever.
+     * @return The leased channel.
+     * @throws PoolProviderException
+     */
+    private LeasedChannel leaseBlocking(Object tag, int time, TimeUnit units, Object userObject, long acquireMillis)
+        throws PoolProviderException
+    {
         fireLeaseRequested(time, units, userObject);
+
+        LeasedContext lc = leaseFromIdle(tag, time, units, userObject);
+        if (lc != null)
+        {
+            return new LeasedChannel(lc, lc.getChannel(), this, userObject);
+        }
+
+        if (onDecouplerLoop())
+        {
+            throw new PoolProviderException("Blocking lease on the event loop that runs the pool, use leaseAsync().");
+        }
+
+        final ObtainLease ol = new ObtainLease(tag, time, units, userObject, acquireMillis);
         NettyConnectionPool.this.execute(ol);
 
         try
@@ -189,72 +542,172 @@ public class NettyConnectionPool
             throw new PoolProviderException("Interrupted: " + e.getMessage(), e);
         }
         catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof LeaseAcquireTimeoutException)
+            {
+                throw (LeaseAcquireTimeoutException)e.getCause();
+            }
+            throw new PoolProviderException("Execution Failed: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<LeasedChannel> leaseMany(int count, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        if (count > immortalCount + maxEphemeralCount)
+        {
+            throw new PoolProviderException("Batch of " + count + " exceeds pool size of " + (immortalCount + maxEphemeralCount));
+        }
+        return leaseBatch(count, leaseTime, units, userObject, true);
+    }
+
+    @Override
+    public List<LeasedChannel> leaseUpTo(int count, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        return leaseBatch(count, leaseTime, units, userObject, false);
+    }
+
+    /**
+     * Run a batch request on the decoupler and wait for it.
+     *
+     * @param count        The number of leases.
+     * @param leaseTime    The lease time.
+     * @param units        The lease time units.
+     * @param userObject   The user object.
+     * @param allOrNothing True if only all count leases will do.
+     * @return The leased channels.
+     * @throws PoolProviderException
+     */
+    private List<LeasedChannel> leaseBatch(int count, int leaseTime, TimeUnit units, Object userObject, boolean allOrNothing)
+        throws PoolProviderException
+    {
+        for (int t = 0; t < count; t++)
+        {
+            fireLeaseRequested(leaseTime, units, userObject);
+        }
+
+        if (onDecouplerLoop())
+        {
+            throw new PoolProviderException("Blocking lease on the event loop that runs the pool, use leaseAsync().");
+        }
+
+        ObtainLeases ol = new ObtainLeases(count, leaseTime, units, userObject, allOrNothing);
+        NettyConnectionPool.this.execute(ol);
+
+        try
+        {
+            List<LeasedContext> contexts = ol.get();
+            List<LeasedChannel> out = new ArrayList<>(contexts.size());
+            for (LeasedContext lc : contexts)
+            {
+                out.add(new LeasedChannel(lc, lc.getChannel(), NettyConnectionPool.this, userObject));
+            }
+            return out;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PoolProviderException("Interrupted: " + e.getMessage(), e);
+        }
+        catch (ExecutionException e)
         {
             throw new PoolProviderException("Execution Failed: " + e.getMessage(), e);
         }
     }
 
+    @Override
+    public LeasedChannel tryLease(int time, TimeUnit units, Object userObject)
+    {
+        fireLeaseRequested(time, units, userObject);
+
+        LeasedContext lc = leaseFromIdle(null, time, units, userObject);
+        if (lc == null)
+        {
+            return null;
+        }
+        return new LeasedChannel(lc, lc.getChannel(), this, userObject);
+    }
+
     @Override
     public void yield(Channel ch)
         throws PoolProviderException
     {
         final Channel channel;
+        final long leaseID;
         if (ch instanceof LeasedChannel)
         {
             channel = ((LeasedChannel)ch).getInner();
+            leaseID = ((LeasedChannel)ch).getLeaseID();
         }
         else
         {
             channel = ch;
+            leaseID = -1; // Whatever lease the channel is out on.
         }
 
+        //
+        // Return it to the home stripe of the yielding thread not that of the decoupler.
+        //
+        final int stripe = immortalContexts.homeStripe();
+
+        if (recentChannels != null)
+        {
+            ChannelSlots.Slot slot = ChannelSlots.peek(channel);
+            AvailableChannel ac = slot != null ? slot.getAvailable() : null;
+            if (ac != null && ac.getChannel() == channel && channel.attr(TAG).get() == null)
+            {
+                recentChannels.yielded(ac);
+            }
+        }
 
         NettyConnectionPool.this.execute(new Runnable()
         {
             @Override
             public void run()
             {
+                ChannelSlots.Slot slot = slots.slotOf(channel);
 
-
-                Object carrier = contextToCarrier.get(channel);
-
-
-                if (carrier instanceof LeasedContext)
+                if (slot != null && slot.getState() == ChannelSlots.State.LEASED
+                    && leaseID >= 0 && slot.getLease().getLeaseID() != leaseID)
+                {
+                    //
+                    // A stale yield must not end the lease the channel has since been granted under.
+                    //
+                    poolExceptionHandler.handleException(new PoolProviderException("Lease " + leaseID + " has already been yielded."));
+                }
+                else if (slot != null && slot.getState() == ChannelSlots.State.LEASED)
                 {
-                    leasedContextSet.remove(carrier);
-                    leasedContexts.remove(carrier);
+                    LeasedContext lc = slot.getLease();
+
+                    ObtainLease waiter = waiterFor(channel);
+                    if (waiter != null)
+                    {
+                        //
+                        // Hand the channel straight to the oldest waiter, it never goes back to idle.
+                        //
+                        waiter.leaveHead();
+                        fireLeaseYield(NettyConnectionPool.this, channel, lc.getUserObject());
+                        waiter.grant(slot.getAvailable());
+                        return;
+                    }
 
-                    AvailableChannel ac = null;
+                    AvailableChannel ac = makeAvailable(slot, lc.getChannelLifespan());
+                    idleFor(ac).offer(ac, stripe);
 
-                    if (((LeasedContext)carrier).isImmortal())
+                    if (noNewLeases && slots.leasedCount() == 0)
                     {
-                        ac = new AvailableChannel(-1, ((LeasedContext)carrier).getChannel(), -1, true, null);
-                        immortalContexts.add(ac);
+                        NettyConnectionPool.this.execute(new ShutdownTask());
                     }
                     else
                     {
-                        int lifespan = ((LeasedContext)carrier).getChannelLifespan();
-                        EphemeralReaper reaper = new EphemeralReaper(lifespan);
-                        ac = new AvailableChannel(System.currentTimeMillis() + lifespan, ((LeasedContext)carrier).getChannel(), lifespan, false, decoupler.schedule(reaper, lifespan, TimeUnit.MILLISECONDS));
-                        reaper.context = ac;
-
-                        ephemeralContexts.add(ac);
-                    }
-
-                    contextToCarrier.put(channel, ac);
-
-                    if (noNewLeases && leasedContexts.isEmpty())
-                    {
-                        NettyConnectionPool.this.execute(new ShutdownTask());
-                    }
-                    else
-                    {
-                        pollNextRequestOntoDecoupler();
+                        pollNextRequestOntoDecoupler(ac.getTag());
                     }
 
-                    fireLeaseYield(NettyConnectionPool.this, channel, ((LeasedContext)carrier).getUserObject());
+                    fireLeaseYield(NettyConnectionPool.this, channel, lc.getUserObject());
                 }
-                else if (carrier instanceof AvailableChannel)
+                else if (slot != null && slot.getState() == ChannelSlots.State.IDLE)
                 {
                     poolExceptionHandler.handleException(new PoolProviderException("Context is not out on lease."));
                 }
@@ -300,6 +753,7 @@ public class NettyConnectionPool
     @Override
     public void stop(final boolean force)
     {
+        noNewLeases = true; // Close the fast path now, the decoupler will sort out the rest.
 
         NettyConnectionPool.this.execute(new Runnable()
         {
@@ -308,7 +762,7 @@ public class NettyConnectionPool
             {
                 noNewLeases = true;
 
-                if (force || leasedContexts.isEmpty())
+                if (force || slots.leasedCount() == 0)
                 {
                     new ShutdownTask().run();
                 }
@@ -319,15 +773,64 @@ public class NettyConnectionPool
 
     }
 
+    /**
+     * Hand a task to the decoupler, tasks handed over after the pool has stopped are dropped.
+     * <p>This takes no monitor so a virtual thread calling it is never pinned to its carrier.</p>
+     *
+     * @param runnable The runnable.
+     */
     @Override
-    public synchronized void execute(Runnable runnable)
+    public void execute(Runnable runnable)
     {
-        if (decoupler.isShutdown() || decoupler.isTerminated())
+        if (stopped)
+        {
+            return;
+        }
+
+        //
+        // A callback already on the pool's event loop, e.g. a connect result or channel inactive, runs straight away
+        // unless tasks are already queued, they go first.
+        //
+        if (onDecouplerLoop() && !inPoolTask && tasks.size() == 0)
         {
+            onDecoupler(runnable).run();
             return;
         }
 
-        decoupler.execute(runnable);
+        try
+        {
+            tasks.execute(runnable);
+        }
+        catch (RejectedExecutionException rex)
+        {
+            // Shut down between the check and the execute.
+        }
+    }
+
+    /**
+     * @return The counters of each lane of lease requests, lane 0 first.
+     */
+    public List<LaneStats> getLaneStats()
+    {
+        List<LaneStats> out = new ArrayList<>(leasesRequired.lanes());
+        for (int t = 0; t < leasesRequired.lanes(); t++)
+        {
+            out.add(leasesRequired.stats(t));
+        }
+        return out;
+    }
+
+    /**
+     * @param userObject The user object of a request.
+     * @return The lane of the request.
+     */
+    private int laneFor(Object userObject)
+    {
+        if (laneSelector == null)
+        {
+            return 0;
+        }
+        return Math.max(0, Math.min(leasesRequired.lanes() - 1, laneSelector.laneFor(userObject)));
     }
 
     @Override
@@ -348,15 +851,29 @@ public class NettyConnectionPool
      */
     private void setupHarvester()
     {
+        //
+        // Idle ephemerals are checked against their lifespan by a sweep, rather than a timer for each yield.
+        //
+        if (maxEphemeralCount > 0)
+        {
+            long sweepMillis = Math.max(1, ephemeralLifespanMillis / 10);
+            recurring.add(decoupler.scheduleAtFixedRate(onTimer(new EphemeralReaper()), sweepMillis, sweepMillis, TimeUnit.MILLISECONDS));
+        }
+
         //
         // A basic recurring process to trigger harvesting of expired leases.
         //
-        decoupler.scheduleAtFixedRate(new Runnable()
+        recurring.add(decoupler.scheduleAtFixedRate(onTimer(new Runnable()
         {
             @Override
             public void run()
             {
-                List<LeasedContext> toBeExpired = leaseExpiryReaper.reapHarvest(leasedContexts);
+                if (slots.leasedCount() == 0)
+                {
+                    return;
+                }
+
+                List<LeasedContext> toBeExpired = leaseExpiryReaper.reapHarvest(slots.leases(), ticker.millis());
 
                 //
                 // Go through to be expired list, check they are actually leased and apply the leaseExpiryHandler to each.
@@ -365,7 +882,8 @@ public class NettyConnectionPool
                 {
                     for (LeasedContext lc : toBeExpired)
                     {
-                        if (leasedContextSet.contains(lc))
+                        ChannelSlots.Slot slot = slots.leased(lc.getChannel(), lc.getLeaseID());
+                        if (slot != null)
                         {
                             //
                             // Notify lease expired.
@@ -383,8 +901,7 @@ public class NettyConnectionPool
                                 // Force closure of the context if handler directs it.
                                 //
 
-                                leasedContexts.remove(lc);
-                                leasedContextSet.remove(lc);
+                                slots.closing(slot);
                                 NettyConnectionPool.this.execute(new CloseContext(lc.getChannel()));
 
                                 //
@@ -406,41 +923,426 @@ public class NettyConnectionPool
                 }
 
             }
-        }, reaperIntervalMillis, reaperIntervalMillis, TimeUnit.MILLISECONDS);
+        }), reaperIntervalMillis, reaperIntervalMillis, TimeUnit.MILLISECONDS));
     }
 
 
     /**
-     * Apply pre-lease to a list of free contexts and grab the first one that passes.
+     * Fast path, try to lease an idle channel on the calling thread.
+     * <p>This only succeeds when no other requests are waiting and an idle channel passes the PreGrantLease,
+     * everything else is left to an ObtainLease on the decoupler. The channels the calling thread yielded most
+     * recently are tried before searching the idle channels.</p>
      *
-     * @param contextList The list of AvailableContexts.
-     * @return An AvailableChannel object or null if none were found.
+     * @param tag        The tag the channel must have, null for any channel.
+     * @param time       The lease time.
+     * @param units      The lease time units.
+     * @param userObject The user object.
+     * @return The LeasedContext or null if the request needs to go through the decoupler.
      */
-    private AvailableChannel applyPreLease(List<AvailableChannel> contextList, Object userObject)
+    private LeasedContext leaseFromIdle(Object tag, long time, TimeUnit units, Object userObject)
     {
+        if (noNewLeases || (tag == null ? !leasesRequired.isEmpty() : taggedWaiters.containsKey(tag)))
+        {
+            return null;
+        }
+
+        AvailableChannel ac;
+        while (true)
+        {
+            ac = null;
+            if (tag != null)
+            {
+                ac = takeTagged(tag, userObject);
+            }
+            else
+            {
+                if (recentChannels != null)
+                {
+                    ac = recentChannels.take(immortalContexts, ephemeralContexts, preGrantLease, this, userObject);
+                }
+
+                if (ac == null)
+                {
+                    ac = takeIdle(userObject);
+                }
+            }
+
+            if (ac == null)
+            {
+                return null;
+            }
+
+            if (!ac.expired(ticker.millis()))
+            {
+                break;
+            }
+
+            NettyConnectionPool.this.execute(new CloseContext(ac.getChannel())); // Try the next one.
+        }
 
-        if (!contextList.isEmpty())
+        final AvailableChannel claimed = ac;
+        final LeasedContext lc = new LeasedContext(
+            leaseIdCounter.getAndIncrement(),
+            ticker.millis() + units.toMillis(time),
+            ac.getChannel(),
+            ac.isImmortal(),
+            userObject, ac.getLifespan()
+        );
+
+        //
+        // Record the lease on the decoupler, this is queued before the caller can possibly yield it.
+        //
+        NettyConnectionPool.this.execute(new Runnable()
         {
-            int c = contextList.size();
+            @Override
+            public void run()
+            {
+                ChannelSlots.Slot slot = slots.slotOf(lc.getChannel());
+                if (slot != null && slot.getState() == ChannelSlots.State.IDLE && slot.getAvailable() == claimed)
+                {
+                    slots.lease(slot, lc);
+                }
+                // Otherwise the channel was closed after it was claimed, the yield will report it as unknown.
+
+                dropTagIfEmpty(claimed.getTag());
+            }
+        });
 
-            while (--c >= 0)
+        //
+        // A stop() that did not see the record queued above may find nothing leased and shut down, so if the pool
+        // is stopping now the channel is handed back and the request left to the decoupler, which refuses it.
+        //
+        if (noNewLeases)
+        {
+            NettyConnectionPool.this.execute(new Runnable()
             {
-                AvailableChannel ac = contextList.remove(0);
-                if (preGrantLease.continueToGrantLease(ac.getChannel(), NettyConnectionPool.this, userObject))
+                @Override
+                public void run()
                 {
-                    return ac;
+                    ChannelSlots.Slot slot = slots.slotOf(lc.getChannel());
+                    if (slot != null && slot.getState() == ChannelSlots.State.LEASED && slot.getLease() == lc)
+                    {
+                        AvailableChannel ac = makeAvailable(slot, claimed.getLifespan());
+                        idleFor(ac).offer(ac, claimed.getStripe());
+                    }
+
+                    if (slots.leasedCount() == 0)
+                    {
+                        new ShutdownTask().run();
+                    }
                 }
-                else
+            });
+            return null;
+        }
+
+        fireLeaseGranted(this, lc.getChannel(), userObject);
+        leasesRequired.stats(laneFor(userObject)).granted(0);
+
+        return lc;
+    }
+
+
+    /**
+     * The oldest waiting request if a yielded channel can be handed straight to it. Decoupler only.
+     * <p>A tagged channel goes to the oldest request for its tag first, then like any other channel to the head of
+     * leasesRequired.</p>
+     *
+     * @param channel The yielded channel.
+     * @return The request to hand it to or null if the channel has to go back to idle.
+     */
+    private ObtainLease waiterFor(Channel channel)
+    {
+        if (noNewLeases)
+        {
+            return null;
+        }
+
+        Object tag = channel.attr(TAG).get();
+        if (tag != null)
+        {
+            ArrayDeque<ObtainLease> waiting = taggedWaiters.get(tag);
+            if (waiting != null && canHandTo(waiting.peekFirst(), channel))
+            {
+                return waiting.peekFirst();
+            }
+        }
+
+        LeaseRequest<?> head = leasesRequired.peekFirst();
+        if (!(head instanceof ObtainLease))
+        {
+            return null; // Nobody waiting or a batch, they are left to take from idle.
+        }
+
+        ObtainLease ol = (ObtainLease)head;
+        return canHandTo(ol, channel) ? ol : null;
+    }
+
+    /**
+     * @param ol      A waiting request.
+     * @param channel The channel.
+     * @return true if the channel can be handed to the request.
+     */
+    private boolean canHandTo(ObtainLease ol, Channel channel)
+    {
+        return !ol.isCancelled() && preGrantLease.continueToGrantLease(channel, this, ol.userObject);
+    }
+
+    /**
+     * Add a tagged request to the requests waiting for its tag. Decoupler only.
+     *
+     * @param ol    The request.
+     * @param first true to put it at the front.
+     */
+    private void queueTagged(ObtainLease ol, boolean first)
+    {
+        ArrayDeque<ObtainLease> waiting = taggedWaiters.get(ol.tag);
+        if (waiting == null)
+        {
+            waiting = new ArrayDeque<>();
+            taggedWaiters.put(ol.tag, waiting);
+        }
+
+        if (first)
+        {
+            waiting.addFirst(ol);
+        }
+        else
+        {
+            waiting.addLast(ol);
+        }
+    }
+
+    /**
+     * Remove a tagged request from the requests waiting for its tag. Decoupler only.
+     *
+     * @param ol The request.
+     * @return true if it was waiting.
+     */
+    private boolean unqueueTagged(ObtainLease ol)
+    {
+        ArrayDeque<ObtainLease> waiting = taggedWaiters.get(ol.tag);
+        if (waiting == null || !waiting.remove(ol))
+        {
+            return false;
+        }
+
+        if (waiting.isEmpty())
+        {
+            taggedWaiters.remove(ol.tag);
+        }
+        return true;
+    }
+
+    /**
+     * Take an idle channel, untagged immortals are preferred over untagged ephemerals, tagged channels are only
+     * taken when no untagged channel is idle. Only tags with idle channels are kept so the first tag tried nearly
+     * always has one.
+     *
+     * @param userObject The user object for the PreGrantLease.
+     * @return The claimed channel or null if none is idle.
+     */
+    private AvailableChannel takeIdle(Object userObject)
+    {
+        AvailableChannel ac = immortalContexts.take(preGrantLease, this, userObject);   // From immortals.
+        if (ac == null)
+        {
+            ac = ephemeralContexts.take(preGrantLease, this, userObject); // From ephemeral.
+        }
+
+        if (ac == null && !taggedContexts.isEmpty())
+        {
+            for (IdleChannels tagged : taggedContexts.values())
+            {
+                ac = tagged.take(preGrantLease, this, userObject);
+                if (ac != null)
                 {
-                    contextList.add(ac);
-                    // Append what we cannot lease to the end with the assumption that the
-                    // next in the list will able to be leased.
+                    break;
                 }
+            }
+        }
+        return ac;
+    }
+
+    /**
+     * Take an idle channel with a tag.
+     *
+     * @param tag        The tag.
+     * @param userObject The user object for the PreGrantLease.
+     * @return The claimed channel or null if none with the tag is idle.
+     */
+    private AvailableChannel takeTagged(Object tag, Object userObject)
+    {
+        IdleChannels tagged = taggedContexts.get(tag);
+        return tagged == null ? null : tagged.take(preGrantLease, this, userObject);
+    }
+
+    /**
+     * @param tag        The tag the channel must have, null for any channel.
+     * @param userObject The user object for the PreGrantLease.
+     * @return The claimed channel or null.
+     */
+    private AvailableChannel takeIdle(Object tag, Object userObject)
+    {
+        return tag == null ? takeIdle(userObject) : takeTagged(tag, userObject);
+    }
+
+    /**
+     * The idle channels an available channel belongs in, decided by its tag when it was made available.
+     * Decoupler only.
+     *
+     * @param ac The available channel.
+     * @return The idle channels.
+     */
+    private IdleChannels idleFor(AvailableChannel ac)
+    {
+        Object tag = ac.getTag();
+        if (tag == null)
+        {
+            return ac.isImmortal() ? immortalContexts : ephemeralContexts;
+        }
+
+        IdleChannels tagged = taggedContexts.get(tag);
+        if (tagged == null)
+        {
+            tagged = new IdleChannels(1, false);
+            taggedContexts.put(tag, tagged);
+        }
+        return tagged;
+    }
+
+    /**
+     * Remove a tag from the idle contexts once it has no idle channels left, so tags that are no longer used do
+     * not collect. Decoupler only, a leasing thread still holding the removed channels finds them empty.
+     *
+     * @param tag The tag of a channel that has just left idle, null for an untagged channel.
+     */
+    private void dropTagIfEmpty(Object tag)
+    {
+        if (tag == null)
+        {
+            return;
+        }
+
+        IdleChannels tagged = taggedContexts.get(tag);
+        if (tagged != null && tagged.isEmpty())
+        {
+            taggedContexts.remove(tag, tagged);
+        }
+    }
 
+    /**
+     * @return The number of ephemeral connections that can still be opened, leased ephemerals count against it.
+     */
+    private int ephemeralCapacity()
+    {
+        return maxEphemeralCount - slots.ephemeralCount();
+    }
+
+    /**
+     * Make a channel idle, the AvailableChannel of the connection is created once and re-armed on each yield.
+     * Decoupler only.
+     * <p>The caller places it into the correct idle channels.</p>
+     *
+     * @param slot     The slot of the channel.
+     * @param lifespan The lifespan of an ephemeral channel.
+     * @return The AvailableChannel.
+     */
+    private AvailableChannel makeAvailable(ChannelSlots.Slot slot, int lifespan)
+    {
+        boolean immortal = slot.isImmortal();
+        long closeAfter = immortal ? -1 : ticker.millis() + lifespan;
+
+        Object tag = slot.getChannel().attr(TAG).get();
+
+        AvailableChannel ac = slot.getAvailable();
+        if (ac == null)
+        {
+            ac = new AvailableChannel(closeAfter, slot.getChannel(), immortal ? -1 : lifespan, immortal);
+            ac.setTag(tag);
+        }
+        else
+        {
+            ac.setTag(tag); // Published by the re-arm.
+            ac.rearm(closeAfter);
+        }
+
+        slots.idle(slot, ac);
+        return ac;
+    }
+
+    /**
+     * Lease a claimed channel. Decoupler only.
+     *
+     * @param ac         The claimed channel.
+     * @param leaseTime  The lease time.
+     * @param units      The lease time units.
+     * @param userObject The user object.
+     * @return The registered LeasedContext.
+     */
+    private LeasedContext grantLease(AvailableChannel ac, long leaseTime, TimeUnit units, Object userObject)
+    {
+        LeasedContext lc = new LeasedContext(
+            leaseIdCounter.getAndIncrement(),
+            ticker.millis() + units.toMillis(leaseTime),
+            ac.getChannel(),
+            ac.isImmortal(),
+            userObject, ac.getLifespan()
+        );
+
+        slots.lease(slots.slotOf(lc.getChannel()), lc);
+        dropTagIfEmpty(ac.getTag());
+        return lc;
+    }
+
+
+    /**
+     * Pick the event loop with the fewest connections from this pool and count the new connection against it.
+     *
+     * @return The event loop.
+     */
+    private EventLoop leastLoadedLoop()
+    {
+        if (affinityGroup == null)
+        {
+            affinityGroup = bootstrapProvider.createBootstrap(this).group();
+        }
+
+        EventLoop least = null;
+        int leastCount = Integer.MAX_VALUE;
+        for (EventExecutor executor : affinityGroup)
+        {
+            Integer count = connectionsPerLoop.get(executor);
+            int c = count == null ? 0 : count;
+            if (c < leastCount)
+            {
+                least = (EventLoop)executor;
+                leastCount = c;
             }
         }
 
-        return null;
+        connectionsPerLoop.put(least, leastCount + 1);
+        return least;
+    }
+
+    /**
+     * Remove a connection from the count of its event loop.
+     *
+     * @param loop The event loop.
+     */
+    private void releaseLoop(EventLoop loop)
+    {
+        Integer count = connectionsPerLoop.get(loop);
+        if (count != null)
+        {
+            if (count <= 1)
+            {
+                connectionsPerLoop.remove(loop);
+            }
+            else
+            {
+                connectionsPerLoop.put(loop, count - 1);
+            }
+        }
     }
 
 
@@ -531,25 +1433,27 @@ public class NettyConnectionPool
     private class EphemeralReaper
         implements Runnable
     {
-
-        private final int lifespan;
-
-        private AvailableChannel context;
-
-        private EphemeralReaper(int lifespan)
-        {
-            this.lifespan = lifespan;
-        }
-
         @Override
         public void run()
         {
-            if (context != null)
+            long now = ticker.millis();
+            reap(ephemeralContexts, now);
+            for (Map.Entry<Object, IdleChannels> e : taggedContexts.entrySet())
             {
-                ephemeralContexts.remove(context);
+                reap(e.getValue(), now);
+                dropTagIfEmpty(e.getKey());
+            }
+        }
 
-                fireEphemeralReaped(context.getChannel());
-                NettyConnectionPool.this.execute(new CloseContext(context.getChannel()));
+        private void reap(IdleChannels idle, long now)
+        {
+            for (AvailableChannel ac : idle)
+            {
+                if (ac.expired(now) && idle.remove(ac))
+                {
+                    fireEphemeralReaped(ac.getChannel());
+                    NettyConnectionPool.this.execute(new CloseContext(ac.getChannel()));
+                }
             }
         }
     }
@@ -564,41 +1468,79 @@ public class NettyConnectionPool
 
 
         private final boolean ephemeral;
-        private final ObtainLease obtainLease;
+        private final LeaseRequest<?> leaseRequest;
         private final CountDownLatch startUpLatch;
 
-        private OpenConnection(boolean ephemeral, ObtainLease obtainLease)
-        {
-            this.obtainLease = obtainLease;
+        /**
+         * The event loop picked for this connection when using event loop affinity.
+         */
+        private EventLoop loop = null;
+
+        /**
+         * The slot of the connection, ephemeral connections reserve it up front so it counts against the capacity.
+         */
+        private ChannelSlots.Slot slot = null;
+
+        /**
+         * Counted in openingForWaiters.
+         */
+        private boolean forWaiters = false;
+
+        private OpenConnection(boolean ephemeral, LeaseRequest<?> leaseRequest)
+        {
+            this.leaseRequest = leaseRequest;
             this.ephemeral = ephemeral;
             startUpLatch = null;
         }
 
-        private OpenConnection(boolean ephemeral, ObtainLease obtainLease, CountDownLatch startUpLatch)
+        private OpenConnection(boolean ephemeral, LeaseRequest<?> leaseRequest, CountDownLatch startUpLatch)
         {
             this.ephemeral = ephemeral;
-            this.obtainLease = obtainLease;
+            this.leaseRequest = leaseRequest;
             this.startUpLatch = startUpLatch;
         }
 
         @Override
         public void run()
         {
-            Bootstrap bs = bootstrapProvider.createBootstrap(NettyConnectionPool.this);
+            if (slot == null)
+            {
+                slot = slots.reserve(!ephemeral);
+            }
+
+            Bootstrap bs;
+            if (eventLoopAffinity && bootstrapProvider instanceof EventLoopBootstrapProvider)
+            {
+                loop = leastLoadedLoop();
+                bs = ((EventLoopBootstrapProvider)bootstrapProvider).createBootstrap(NettyConnectionPool.this, loop);
+            }
+            else
+            {
+                bs = bootstrapProvider.createBootstrap(NettyConnectionPool.this);
+            }
+
             final ConnectionInfo ci = connectionInfoProvider.connectionInfo(NettyConnectionPool.this);
 
             final ChannelInitializer initializer = ci.getChannelInitializer();
             bs.handler(initializer);
 
+            //
+            // The connect is never waited on, the decoupler carries on with other work and the outcome is posted
+            // back to it by the listener.
+            //
             try
             {
-                bs.connect(ci.getRemoteSocketAddress(), ci.getLocalSocketAddress()).sync().addListener(new ChannelFutureListener()
+                bs.connect(ci.getRemoteSocketAddress(), ci.getLocalSocketAddress()).addListener(new ChannelFutureListener()
                 {
                     @Override
                     public void operationComplete(final ChannelFuture future)
                         throws Exception
                     {
-
+                        if (stopped)
+                        {
+                            future.channel().close(); // Stopped while connecting, nobody will take it.
+                            return;
+                        }
 
                         //
                         // Put result back on the decoupler.
@@ -654,6 +1596,15 @@ public class NettyConnectionPool
                                     });
 
                                     final Channel ctc = future.channel();
+                                    ctc.attr(POOL).set(NettyConnectionPool.this);
+
+                                    //
+                                    // A connection opened for a tagged request starts out with that tag.
+                                    //
+                                    if (leaseRequest != null && leaseRequest.tag() != null)
+                                    {
+                                        ctc.attr(TAG).set(leaseRequest.tag());
+                                    }
 
 
                                     //
@@ -661,51 +1612,47 @@ public class NettyConnectionPool
                                     //
 
 
-                                    postConnectEstablish.establish(ctc, NettyConnectionPool.this, new DecoupledCompletion(decoupler)
+                                    postConnectEstablish.establish(ctc, NettyConnectionPool.this, new DecoupledCompletion(poolExecutor)
                                     {
                                         @Override
                                         protected void onComplete()
                                         {
 
-                                            AvailableChannel ac = null;
-                                            if (ephemeral)
-                                            {
-                                                EphemeralReaper reaper = new EphemeralReaper(ephemeralLifespanMillis);
-                                                ac = new AvailableChannel(
-                                                    System.currentTimeMillis() + ephemeralLifespanMillis,
-                                                    ctc,
-                                                    ephemeralLifespanMillis,
-                                                    true,
-                                                    decoupler.schedule(reaper, ephemeralLifespanMillis, TimeUnit.MILLISECONDS));
-
-                                                reaper.context = ac;
-
-                                                ephemeralContexts.add(ac);
-                                                fireConnectionCreated(ctc, true);
-                                            }
-                                            else
-                                            {
-                                                ac = new AvailableChannel(-1, ctc, -1, false, null);
-
-                                                immortalContexts.add(ac);
-                                                fireConnectionCreated(ctc, false);
-                                            }
-                                            contextToCarrier.put(ctc, ac);
+                                            slots.bind(slot, ctc);
+                                            AvailableChannel ac = makeAvailable(slot, ephemeralLifespanMillis);
 
                                             //
-                                            // If there are requests pending that are off the decoupler then
-                                            // put the first one in the deque back on the decoupler before exiting.
+                                            // A connection not opened for a particular request goes to the
+                                            // oldest waiter, whichever request caused it to be opened.
                                             //
+                                            ObtainLease waiter = leaseRequest == null ? waiterFor(ctc) : null;
+                                            if (waiter == null || !ac.claim())
+                                            {
+                                                waiter = null;
+                                                idleFor(ac).add(ac);
+                                            }
+                                            fireConnectionCreated(ctc, ephemeral);
 
-                                            connectionsInProgress.remove(OpenConnection.this);
-
+                                            if (forWaiters)
+                                            {
+                                                openingForWaiters--;
+                                            }
 
-                                            if (obtainLease != null)
+                                            if (waiter != null)
                                             {
-                                                obtainLease.run();
+                                                waiter.leaveHead();
+                                                waiter.grant(ac);
+                                            }
+                                            else if (leaseRequest != null)
+                                            {
+                                                leaseRequest.connectionOpened();
                                             }
                                             else
                                             {
+                                                //
+                                                // If there are requests pending that are off the decoupler then
+                                                // put the first one in the deque back on the decoupler before exiting.
+                                                //
                                                 pollNextRequestOntoDecoupler();
                                             }
 
@@ -722,17 +1669,9 @@ public class NettyConnectionPool
                                 else
                                 {
                                     //
-                                    // Connection opening failed.
+                                    // Connection opening failed, a refused connection ends up here.
                                     //
-                                    connectionsInProgress.remove(OpenConnection.this);
-                                    if (obtainLease != null)
-                                    {
-                                        leasesRequired.add(obtainLease); // Put it back on the request list.
-                                    }
-                                    if (startUpLatch != null)
-                                    {
-                                        startUpLatch.countDown();
-                                    }
+                                    failed(future.cause());
                                 }
 
 
@@ -748,187 +1687,607 @@ public class NettyConnectionPool
             }
             catch (Exception iex)
             {
-                //TODO decide if we interrupt the decoupler.. probably not.
-                poolExceptionHandler.handleException(iex);
+                failed(iex); // Thrown before the connect got under way.
+            }
+        }
+
+        /**
+         * Give back what was taken for the connection and tell whoever was waiting on it. Decoupler only.
+         *
+         * @param cause Why the connection could not be opened.
+         */
+        private void failed(Throwable cause)
+        {
+            if (loop != null)
+            {
+                releaseLoop(loop);
+            }
+
+            slots.release(slot);
+            if (forWaiters)
+            {
+                openingForWaiters--;
+            }
+            if (leaseRequest != null)
+            {
+                leaseRequest.connectionFailed();
+            }
+            if (startUpLatch != null)
+            {
+                startUpLatch.countDown();
+            }
+            if (cause != null)
+            {
+                poolExceptionHandler.handleException(cause);
             }
         }
     }
 
     /**
-     * Obtain a lease deferrable task.
+     * A lease request, it can wait in leasesRequired or on connections being opened for it.
+     */
+    private abstract class LeaseRequest<V>
+        extends DeferrableTask<V>
+    {
+        /**
+         * The lane the request waits in.
+         */
+        protected final int lane;
+
+        /**
+         * When the request was made.
+         */
+        protected final long requestedAt = ticker.millis();
+
+        protected LeaseRequest(Object userObject)
+        {
+            this.lane = laneFor(userObject);
+        }
+
+        /**
+         * @return The tag the request needs, null for any channel.
+         */
+        protected Object tag()
+        {
+            return null;
+        }
+
+        /**
+         * Called on the decoupler when a connection opened for this request has become available.
+         */
+        protected void connectionOpened()
+        {
+            run();
+        }
+
+        /**
+         * Called on the decoupler when a connection opened for this request could not be established.
+         */
+        protected abstract void connectionFailed();
+    }
+
+    /**
+     * Obtain a lease deferrable task.
+     */
+    private class ObtainLease
+        extends LeaseRequest<LeasedContext>
+    {
+        private final Object tag;
+        private final long leaseTime;
+        private final TimeUnit units;
+        private final Object userObject;
+        private LeaseFuture leaseFuture;
+
+        /**
+         * The time the request gives up waiting, -1 for never.
+         */
+        private final long acquireDeadline;
+        private ScheduledFuture<?> acquireTimer = null;
+
+        /**
+         * A zero acquire timeout, the request only takes an idle channel.
+         */
+        private final boolean noWait;
+
+        public ObtainLease(Object tag, long time, TimeUnit units, Object userObject, long acquireMillis)
+        {
+            super(userObject);
+            this.tag = tag;
+            this.leaseTime = time;
+            this.units = units;
+            this.userObject = userObject;
+            this.acquireDeadline = acquireMillis < 0 ? -1 : ticker.millis() + acquireMillis;
+            this.noWait = acquireMillis == 0;
+        }
+
+
+        @Override
+        public void defer()
+            throws Exception
+        {
+            //
+            // Others in queue, place at end, if it was at the head keep its place.
+            //
+            enqueue(!firstAttempt);
+            openForWaiters();
+        }
+
+        /**
+         * Wait in leasesRequired or, with a tag, with the other requests for the tag.
+         *
+         * @param first true to put it at the front.
+         */
+        private void enqueue(boolean first)
+        {
+            if (tag != null)
+            {
+                queueTagged(this, first);
+            }
+            else if (first)
+            {
+                leasesRequired.addFirst(this, lane);
+            }
+            else
+            {
+                leasesRequired.addLast(this, lane);
+            }
+        }
+
+        /**
+         * Stop waiting.
+         *
+         * @return true if it was waiting.
+         */
+        private boolean dequeue()
+        {
+            return tag != null ? unqueueTagged(this) : leasesRequired.remove(this, lane);
+        }
+
+        /**
+         * Take this request off the head of the queue it waits in, it was returned by waiterFor().
+         */
+        private void leaveHead()
+        {
+            if (tag != null)
+            {
+                unqueueTagged(this);
+            }
+            else
+            {
+                leasesRequired.pollFirst();
+            }
+        }
+
+        @Override
+        protected Object tag()
+        {
+            return tag;
+        }
+
+        @Override
+        protected void connectionOpened()
+        {
+            //
+            // The connection was opened for this request, it must not defer behind requests for the same tag that
+            // arrived while it was being opened.
+            //
+            firstAttempt = false;
+            run();
+        }
+
+        @Override
+        protected void connectionFailed()
+        {
+            if (!isDone())
+            {
+                enqueue(false); // Put it back on the request list.
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            super.run();
+
+            //
+            // Start the acquire timer once, only when the request could not be granted straight away.
+            //
+            if (acquireDeadline >= 0 && acquireTimer == null && !isDone() && !isCancelled())
+            {
+                acquireTimer = decoupler.schedule(onTimer(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        acquireTimedOut();
+                    }
+                }), Math.max(0, acquireDeadline - ticker.millis()), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Fail the request if it is still waiting.
+         */
+        private void acquireTimedOut()
+        {
+            if (isDone() || isCancelled())
+            {
+                return;
+            }
+
+            dequeue();
+
+            LeaseAcquireTimeoutException ex = new LeaseAcquireTimeoutException("Lease not granted within acquire timeout.");
+            setException(ex);
+            if (leaseFuture != null)
+            {
+                leaseFuture.setError(ex);
+            }
+        }
+
+        @Override
+        public boolean runOrDefer()
+            throws Exception
+        {
+
+            if (leaseFuture != null && leaseFuture.isCancelled())
+            {
+                fireLeaseCanceled(userObject);
+                return false;
+            }
+
+            if (isDone())
+            {
+                //
+                // Timed out, pass whatever this was woken for on to the next request.
+                //
+                pollNextRequestOntoDecoupler(tag);
+                return false;
+            }
+
+
+            if (noNewLeases)
+            {
+                IllegalArgumentException ilex = new IllegalArgumentException("Pool is shutting down.");
+
+                if (leaseFuture != null)
+                {
+                    leaseFuture.setError(ilex);
+                }
+                throw ilex;
+            }
+
+
+            //
+            // Check this is not stepping in front of older requests.
+            //
+            if (firstAttempt && (tag == null ? !leasesRequired.isEmpty() : taggedWaiters.containsKey(tag)))
+            {
+                if (noWait)
+                {
+                    acquireTimedOut();
+                    return false;
+                }
+                return true;             // Defer this till later.
+            }
+
+            //
+            // Can we satisfy this immediately
+            //
+
+            AvailableChannel ac = takeIdle(tag, userObject);
+
+
+            if (ac != null)
+            {
+
+                //
+                // Has it expired.
+                //
+                if (ac.expired(ticker.millis()))
+                {
+                    ac.getChannel().close();
+                    NettyConnectionPool.this.execute(new CloseContext(ac.getChannel()));
+                }
+                else
+                {
+                    grant(ac);
+
+                    //
+                    // We got a lease the next one might too.
+                    //
+                    pollNextRequestOntoDecoupler(tag);
+
+                    return false; // Lease granted.
+                }
+            }
+
+            //
+            // With no time to wait it does not wait for a yield or open a connection.
+            //
+            if (noWait)
+            {
+                acquireTimedOut();
+                return false;
+            }
+
+            //
+            // A tagged request needs a connection of its own that starts out with the tag, others wait in line
+            // and defer() opens connections for however many are waiting.
+            //
+            if (tag != null && ephemeralCapacity() > 0)
+            {
+                openEphemeral(this);
+                return false; // At this point the
+            }
+
+
+            //
+            // Handle cancel.
+            //
+            if (leaseFuture != null && leaseFuture.isCancelled())
+            {
+                fireLeaseCanceled(userObject);
+                return false;
+            }
+
+
+            return true;
+        }
+
+
+        /**
+         * Grant this request a lease on a claimed channel.
+         *
+         * @param ac The claimed channel.
+         */
+        private void grant(AvailableChannel ac)
+        {
+            if (acquireTimer != null)
+            {
+                acquireTimer.cancel(false);
+            }
+
+            LeasedContext lc = grantLease(ac, leaseTime, units, userObject);
+
+            setResult(lc);
+            fireLeaseGranted(NettyConnectionPool.this, lc.getChannel(), userObject);
+            leasesRequired.stats(lane).granted(ticker.millis() - requestedAt);
+
+            //
+            // Fire the future, if it was canceled meanwhile the lease is yielded straight back.
+            //
+            if (leaseFuture != null)
+            {
+                leaseFuture.setValue(new LeasedChannel(lc, lc.getChannel(), NettyConnectionPool.this, userObject));
+            }
+        }
+
+        /**
+         * @return true if the future of this request has been canceled.
+         */
+        private boolean isCancelled()
+        {
+            return leaseFuture != null && leaseFuture.isCancelled();
+        }
+
+        protected LeaseFuture getLeaseFuture(LeaseListener listener, Executor executor)
+        {
+            leaseFuture = new LeaseFuture(this, listener, executor);
+            return leaseFuture;
+        }
+    }
+
+
+    /**
+     * Obtain a batch of leases in one pass on the decoupler.
+     * <p>Idle channels are claimed first and ephemeral connections for the remainder are opened in parallel.
+     * When allOrNothing is set the leases are only granted once count channels are in hand, if that is not
+     * possible without waiting for yields the claimed channels go back to idle and the request is deferred.
+     * Otherwise the request completes with whatever it could get once its connections have settled.</p>
      */
-    private class ObtainLease
-        extends DeferrableTask<LeasedContext>
+    private class ObtainLeases
+        extends LeaseRequest<List<LeasedContext>>
     {
+        private final int count;
         private final long leaseTime;
         private final TimeUnit units;
         private final Object userObject;
-        private LeaseFuture leaseFuture;
+        private final boolean allOrNothing;
+
+        private final List<AvailableChannel> claimed = new ArrayList<>();
+        private int connecting = 0;
+        private boolean done = false;
 
-        public ObtainLease(long time, TimeUnit units, Object userObject)
+        public ObtainLeases(int count, long time, TimeUnit units, Object userObject, boolean allOrNothing)
         {
+            super(userObject);
+            this.count = count;
             this.leaseTime = time;
             this.units = units;
             this.userObject = userObject;
-
+            this.allOrNothing = allOrNothing;
         }
 
-
         @Override
         public void defer()
             throws Exception
         {
-            leasesRequired.addLast(this); // Others in queue, place at end.
+            leasesRequired.addLast(this, lane);
         }
 
         @Override
-        public boolean runOrDefer()
-            throws Exception
+        protected void connectionOpened()
         {
-
-            if (leaseFuture != null && leaseFuture.isCancelled())
+            connecting--;
+            if (done)
             {
-                fireLeaseCanceled(userObject);
-                return false;
+                pollNextRequestOntoDecoupler(); // Completed without it, let someone else have it.
+                return;
             }
+            leasesRequired.remove(this, lane); // May be waiting there as well.
+            run();
+        }
 
+        @Override
+        protected void connectionFailed()
+        {
+            connectionOpened();
+        }
 
+        @Override
+        public boolean runOrDefer()
+            throws Exception
+        {
             if (noNewLeases)
             {
-                IllegalArgumentException ilex = new IllegalArgumentException("Pool is shutting down.");
-
-                if (leaseFuture != null)
-                {
-                    leaseFuture.setError(ilex);
-                }
-                throw ilex;
+                done = true;
+                releaseClaimed();
+                throw new IllegalArgumentException("Pool is shutting down.");
             }
 
-
             //
             // Check this is not stepping in front of older requests.
             //
             if (firstAttempt && !leasesRequired.isEmpty())
             {
-                return true;             // Defer this till later.
+                return true;
             }
+            firstAttempt = false; // Connections opened for this request must not send it to the back.
 
             //
-            // Can we satisfy this immediately
+            // Claim what is idle.
             //
-
-            AvailableChannel ac = applyPreLease(immortalContexts, userObject);   // From immortals.
-
-            if (ac == null)
-            {
-                ac = applyPreLease(ephemeralContexts, userObject); // From ephemeral.
-            }
-
-
-            if (ac != null)
+            while (claimed.size() < count)
             {
-                if (leaseFuture != null)
+                AvailableChannel ac = takeIdle(userObject);
+                if (ac == null)
                 {
-                    leaseFuture.blockLeaseCancel();
+                    break;
                 }
-                ac.cancelReaper();
-
 
-                //
-                // Has it expired.
-                //
-                if (ac.expired(System.currentTimeMillis()))
+                if (ac.expired(ticker.millis()))
                 {
                     ac.getChannel().close();
                     NettyConnectionPool.this.execute(new CloseContext(ac.getChannel()));
                 }
                 else
                 {
-                    LeasedContext lc = new LeasedContext(
-                        leaseIdCounter++,
-                        System.currentTimeMillis() + units.toMillis(leaseTime),
-                        ac.getChannel(),
-                        !ac.isImmortal(),
-                        userObject, ac.getLifespan()
-                    );
-
-                    leasedContexts.add(lc);
-                    leasedContextSet.add(lc);
-                    contextToCarrier.put(lc.getChannel(), lc);
-
-
-                    //
-                    // We got a lease the next one might too.
-                    //
-                    pollNextRequestOntoDecoupler();
-
+                    claimed.add(ac);
+                }
+            }
 
-                    setResult(lc);
-                    fireLeaseGranted(NettyConnectionPool.this, lc.getChannel(), userObject);
+            //
+            // Drop anything closed while it was held waiting for connections.
+            //
+            for (Iterator<AvailableChannel> it = claimed.iterator(); it.hasNext(); )
+            {
+                AvailableChannel ac = it.next();
+                if (slots.slotOf(ac.getChannel()) == null)
+                {
+                    it.remove();
+                }
+            }
 
+            int needed = count - claimed.size() - connecting;
+            if (needed > 0)
+            {
+                int canOpen = ephemeralCapacity();
+                if (allOrNothing && needed > canOpen)
+                {
                     //
-                    // Fire the future.
+                    // Cannot be met without waiting for yields, do not sit on idle channels meanwhile.
                     //
-                    if (leaseFuture != null)
-                    {
-                        leaseFuture.setValue(new LeasedChannel(lc, lc.getChannel(), NettyConnectionPool.this, userObject));
-                    }
+                    releaseClaimed();
+                    return connecting == 0;
+                }
 
-                    return false; // Lease granted.
+                for (int t = 0; t < Math.min(needed, canOpen); t++)
+                {
+                    openEphemeral(this);
+                    connecting++;
                 }
             }
 
-            //
-            // Can we request creation of another another connection.
-            //
-            if (ephemeralContexts.size() < maxEphemeralCount - connectionsInProgress.size())
+            if (claimed.size() < count && connecting > 0)
             {
-                OpenConnection oc = new OpenConnection(true, this);
-                connectionsInProgress.add(oc);
-                NettyConnectionPool.this.execute(oc);
-                return false; // At this point the
+                return false; // Wait for the connections.
             }
 
+            if (allOrNothing && claimed.size() < count)
+            {
+                releaseClaimed();
+                return true;
+            }
 
-            //
-            // Handle cancel.
-            //
-            if (leaseFuture != null && leaseFuture.isCancelled())
+            List<LeasedContext> granted = new ArrayList<>(claimed.size());
+            for (AvailableChannel ac : claimed)
             {
-                fireLeaseCanceled(userObject);
+                LeasedContext lc = grantLease(ac, leaseTime, units, userObject);
+                granted.add(lc);
+                fireLeaseGranted(NettyConnectionPool.this, lc.getChannel(), userObject);
+                leasesRequired.stats(lane).granted(ticker.millis() - requestedAt);
+            }
+            claimed.clear();
+            done = true;
 
-                //
-                // Schedule the immediate yielding of the channel of the canceled lease.
-                //
-                NettyConnectionPool.this.execute(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        try
-                        {
-                            NettyConnectionPool.this.yield(leaseFuture.channel);
+            pollNextRequestOntoDecoupler();
+            setResult(granted);
 
-                        }
-                        catch (PoolProviderException e)
-                        {
-                            poolExceptionHandler.handleException(e);
-                        }
-                    }
-                });
+            return false;
+        }
 
-                return false;
+        /**
+         * Return claimed channels to idle.
+         */
+        private void releaseClaimed()
+        {
+            for (AvailableChannel ac : claimed)
+            {
+                makeAvailable(slots.slotOf(ac.getChannel()), ac.getLifespan());
+                idleFor(ac).offer(ac, ac.getStripe());
             }
 
-
-            return true;
+            //
+            // A single lease waiting behind can use them, another batch is left for the next yield
+            // so two batches that cannot be met do not hand the same channels back and forth.
+            //
+            if (!claimed.isEmpty() && leasesRequired.peekFirst() instanceof ObtainLease)
+            {
+                pollNextRequestOntoDecoupler();
+            }
+            claimed.clear();
         }
+    }
+
+
+    /**
+     * Open an ephemeral connection for a request, its slot is reserved now so it counts against the capacity.
+     *
+     * @param leaseRequest The request to tell when the connection is open.
+     */
+    private void openEphemeral(LeaseRequest<?> leaseRequest)
+    {
+        OpenConnection oc = new OpenConnection(true, leaseRequest);
+        oc.slot = slots.reserve(false);
+        NettyConnectionPool.this.execute(oc);
+    }
 
 
-        protected LeaseFuture getLeaseFuture(LeaseListener listener)
+    /**
+     * Open ephemeral connections for waiting requests, up to one per waiter less those already being opened.
+     * The connections are not tied to a request, each one goes to the oldest waiter when it is ready.
+     */
+    private void openForWaiters()
+    {
+        int wanted = Math.min(leasesRequired.size() - openingForWaiters, ephemeralCapacity());
+        for (int t = 0; t < wanted; t++)
         {
-            leaseFuture = new LeaseFuture(this, listener);
-            return leaseFuture;
+            OpenConnection oc = new OpenConnection(true, null);
+            oc.slot = slots.reserve(false);
+            oc.forWaiters = true;
+            openingForWaiters++;
+            NettyConnectionPool.this.execute(oc);
         }
     }
 
@@ -943,6 +2302,29 @@ public class NettyConnectionPool
         NettyConnectionPool.this.execute(leasesRequired.pollFirst());
     }
 
+    /**
+     * Put the next request that can use a channel with the tag back on the decoupler, the oldest request for the tag
+     * before the head of leasesRequired.
+     *
+     * @param tag The tag of the channel, null for an untagged channel.
+     */
+    private void pollNextRequestOntoDecoupler(Object tag)
+    {
+        ArrayDeque<ObtainLease> waiting = tag == null ? null : taggedWaiters.get(tag);
+        if (waiting == null)
+        {
+            pollNextRequestOntoDecoupler();
+            return;
+        }
+
+        ObtainLease ol = waiting.pollFirst();
+        if (waiting.isEmpty())
+        {
+            taggedWaiters.remove(tag);
+        }
+        NettyConnectionPool.this.execute(ol);
+    }
+
 
     /**
      * Called when writability changes.
@@ -990,38 +2372,110 @@ public class NettyConnectionPool
         @Override
         public void run()
         {
-            Object o = contextToCarrier.remove(ctx);
-            if (o instanceof AvailableChannel)
+            final ChannelSlots.Slot slot = slots.slotOf(ctx);
+            if (slot != null)
             {
-                immortalContexts.remove(o);
-                ephemeralContexts.remove(o);
-            }
-            else
-            {
-                leasedContexts.remove(o);
-                leasedContextSet.remove(o);
+                if (affinityGroup != null)
+                {
+                    releaseLoop(ctx.eventLoop());
+                }
+
+                if (slot.getState() == ChannelSlots.State.IDLE)
+                {
+                    //
+                    // If the claim fails a leasing thread got it first, the pending lease record will see the
+                    // channel is no longer known and drop it.
+                    //
+                    AvailableChannel ac = slot.getAvailable();
+                    idleFor(ac).remove(ac);
+                    dropTagIfEmpty(ac.getTag());
+                }
+
+                slots.closing(slot);
             }
 
 
             if (ctx.isOpen())
             {
-                ctx.close().syncUninterruptibly().addListener(new ChannelFutureListener()
+                //
+                // Closes are collected and issued once the decoupler has worked through the tasks queued so far,
+                // so a burst of them costs one task per event loop.
+                //
+                if (pendingCloses.isEmpty())
                 {
-                    @Override
-                    public void operationComplete(ChannelFuture future)
-                        throws Exception
+                    NettyConnectionPool.this.execute(new Runnable()
                     {
-                        fireConnectionClosed(ctx);
-                    }
-                });
+                        @Override
+                        public void run()
+                        {
+                            flushCloses();
+                        }
+                    });
+                }
+
+                List<Channel> closes = pendingCloses.get(ctx.eventLoop());
+                if (closes == null)
+                {
+                    closes = new ArrayList<>();
+                    pendingCloses.put(ctx.eventLoop(), closes);
+                }
+                closes.add(ctx);
             }
-            else
+            else if (slot != null)
+            {
+                fireConnectionClosed(ctx); // Closed from the other end, a close by the pool has already fired.
+            }
+
+            if (slot != null)
+            {
+                slots.release(slot);
+            }
+
+        }
+    }
+
+
+    /**
+     * Issue the pending closes, the channels of each event loop are closed from one task on that loop.
+     * Nothing waits for a close, connectionClosed is fired from the close future. Decoupler only.
+     */
+    private void flushCloses()
+    {
+        final ChannelFutureListener closed = new ChannelFutureListener()
+        {
+            @Override
+            public void operationComplete(ChannelFuture future)
+                throws Exception
             {
-                fireConnectionClosed(ctx);
+                fireConnectionClosed(future.channel());
             }
+        };
 
+        for (Map.Entry<EventLoop, List<Channel>> e : pendingCloses.entrySet())
+        {
+            final List<Channel> closes = e.getValue();
+            Runnable closeAll = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (Channel ch : closes)
+                    {
+                        ch.close().addListener(closed);
+                    }
+                }
+            };
 
+            try
+            {
+                e.getKey().execute(closeAll);
+            }
+            catch (RejectedExecutionException rex)
+            {
+                closeAll.run(); // Loop is shutting down, the channels queue their own close.
+            }
         }
+        pendingCloses.clear();
     }
 
 
@@ -1051,19 +2505,23 @@ public class NettyConnectionPool
         @Override
         public void run()
         {
+            flushCloses(); // Queued behind this and dropped by shutdownNow() otherwise.
 
-            for (LeasedContext lc : leasedContexts)
+            for (LeasedContext lc : slots.leases())
             {
                 lc.getChannel().close();
             }
 
-            for (AvailableChannel ac : immortalContexts)
+            //
+            // From the slots rather than the idle channels, a channel a leasing thread has claimed but not yet
+            // recorded is no longer in the idle channels.
+            //
+            for (Channel ch : slots.idleChannels())
             {
-
                 try
                 {
-                    ac.getChannel().close();
-                    fireConnectionClosed(ac.getChannel());
+                    ch.close();
+                    fireConnectionClosed(ch);
                 }
                 catch (Exception ex)
                 {
@@ -1071,21 +2529,19 @@ public class NettyConnectionPool
                 }
             }
 
-            for (AvailableChannel ac : ephemeralContexts)
+            stopped = true;
+            tasks.shutdown();
+            if (ownDecoupler)
             {
-
-                try
-                {
-                    ac.getChannel().close();
-                    fireConnectionClosed(ac.getChannel());
-                }
-                catch (Exception ex)
+                decoupler.shutdownNow();
+            }
+            else
+            {
+                for (ScheduledFuture<?> f : recurring)
                 {
-                    poolExceptionHandler.handleException(ex);
+                    f.cancel(false); // A shared decoupler is not ours to shut down.
                 }
             }
-
-            decoupler.shutdownNow();
             fireStopped();
 
         }
@@ -1093,131 +2549,125 @@ public class NettyConnectionPool
 
     /**
      * A future for lease requests.
+     * <p>Granting and canceling race on the completion of the future itself, a lease that loses to a cancel is
+     * yielded straight back to the pool.</p>
      */
     private class LeaseFuture
-        implements Future<LeasedChannel>
+        extends CompletableFuture<LeasedChannel>
     {
-
-        private final AtomicBoolean cancel = new AtomicBoolean(false);
-        private final CountDownLatch latch = new CountDownLatch(1);
         private final ObtainLease obtainLease;
         private final LeaseListener leaseListener;
-        private final AtomicBoolean blockLeaseCancel = new AtomicBoolean(false);
+        private final Executor executor;
 
-        private boolean success = false;
-        private Throwable throwable = null;
-        private LeasedChannel channel = null;
-
-
-        private LeaseFuture(ObtainLease obtainLease, LeaseListener leaseListener)
+        private LeaseFuture(ObtainLease obtainLease, LeaseListener leaseListener, Executor executor)
         {
             this.obtainLease = obtainLease;
             this.leaseListener = leaseListener;
+            this.executor = executor;
         }
 
         @Override
-        public synchronized boolean cancel(boolean mayInterruptIfRunning)
+        public boolean cancel(boolean mayInterruptIfRunning)
         {
-            if (blockLeaseCancel.get())
+            if (!super.cancel(mayInterruptIfRunning))
             {
-                throw new IllegalStateException("Lease has been granted.");
+                if (!isCancelled() && !isCompletedExceptionally())
+                {
+                    throw new IllegalStateException("Lease has been granted.");
+                }
+                return false;
             }
 
-            cancel.set(true);
             if (leaseListener != null)
             {
-                leaseListener.leaseRequest(false, channel, new PoolProviderException("Lease request canceled."));
+                leaseListener.leaseRequest(false, null, new PoolProviderException("Lease request canceled."));
             }
 
-
-            NettyConnectionPool.this.execute(new Runnable()
+            if (obtainLease != null)
             {
-                @Override
-                public void run()
+                NettyConnectionPool.this.execute(new Runnable()
                 {
-                    if (leasesRequired.remove(obtainLease))
+                    @Override
+                    public void run()
                     {
-                        fireLeaseCanceled(obtainLease.userObject);
-                    }
+                        if (obtainLease.dequeue())
+                        {
+                            fireLeaseCanceled(obtainLease.userObject);
+                        }
 
-                }
-            });
+                    }
+                });
+            }
 
             return true;
         }
 
-        protected void setValue(LeasedChannel lc)
+        protected void setValue(final LeasedChannel lc)
         {
-            success = true;
-            channel = lc;
-            latch.countDown();
-
-            if (leaseListener != null)
+            if (executor == null)
             {
-                leaseListener.leaseRequest(true, channel, throwable);
+                grant(lc);
+                return;
             }
+
+            executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    grant(lc);
+                }
+            });
         }
 
-        protected void setError(Throwable throwable)
+        private void grant(LeasedChannel lc)
         {
-            success = false;
-            this.throwable = throwable;
-            latch.countDown();
+            if (!complete(lc))
+            {
+                //
+                // Canceled while the lease was being granted, give it straight back.
+                //
+                try
+                {
+                    NettyConnectionPool.this.yield(lc);
+                }
+                catch (PoolProviderException e)
+                {
+                    poolExceptionHandler.handleException(e);
+                }
+                return;
+            }
 
             if (leaseListener != null)
             {
-                leaseListener.leaseRequest(false, null, throwable);
+                leaseListener.leaseRequest(true, lc, null);
             }
-
-        }
-
-
-        @Override
-        public boolean isCancelled()
-        {
-            return cancel.get();
-        }
-
-        @Override
-        public boolean isDone()
-        {
-            return latch.getCount() == 0;
         }
 
-        @Override
-        public LeasedChannel get()
-            throws InterruptedException, ExecutionException
+        protected void setError(final Throwable throwable)
         {
-            latch.await();
-            if (success)
+            if (executor == null)
             {
-                return channel;
+                fail(throwable);
+                return;
             }
 
-            throw new ExecutionException(throwable);
-        }
-
-        @Override
-        public LeasedChannel get(long timeout, TimeUnit unit)
-            throws InterruptedException, ExecutionException, TimeoutException
-        {
-
-            if (latch.await(timeout, unit))
+            executor.execute(new Runnable()
             {
-                if (success)
+                @Override
+                public void run()
                 {
-                    return channel;
+                    fail(throwable);
                 }
-
-                throw new ExecutionException(throwable);
-            }
-
-            throw new TimeoutException("Lease request timed out.");
+            });
         }
 
-        public void blockLeaseCancel()
+        private void fail(Throwable throwable)
         {
-            blockLeaseCancel.set(true);
+            if (completeExceptionally(throwable) && leaseListener != null)
+            {
+                leaseListener.leaseRequest(false, null, throwable);
+            }
         }
     }
 }
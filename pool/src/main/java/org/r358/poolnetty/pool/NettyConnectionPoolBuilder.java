@@ -20,9 +20,17 @@
 package org.r358.poolnetty.pool;
 
 import io.netty.channel.Channel;
+import io.netty.util.concurrent.EventExecutor;
 import org.r358.poolnetty.common.*;
 import org.r358.poolnetty.common.concurrent.Completion;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * A connection pool builder.
  * The connection pool is final and this class build it. (listeners can be added an removed at will).
@@ -51,6 +59,14 @@ public class NettyConnectionPoolBuilder
     protected int maxEphemeralCount = 5;
     protected int ephemeralLifespanMillis = 60000;
     protected int reaperIntervalMillis = 15000;
+    protected int idleStripes = Runtime.getRuntime().availableProcessors();
+    protected boolean eventLoopAffinity = false;
+    protected int recentChannelsPerThread = 4;
+    protected int[] laneWeights = {1};
+    protected LaneSelector laneSelector;
+    protected ScheduledExecutorService decoupler;
+    protected ShardSelector shardSelector;
+    protected Ticker ticker = Ticker.SYSTEM;
 
 
     public NettyConnectionPoolBuilder()
@@ -158,6 +174,174 @@ public class NettyConnectionPoolBuilder
         return this;
     }
 
+    /**
+     * The number of stripes the idle channels are split over, defaults to the number of available processors.
+     * Leasing threads start at their own stripe and only look in others when it is empty.
+     *
+     * @param idleStripes The number of stripes, rounded up to a power of two.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withIdleStripes(int idleStripes)
+    {
+        this.idleStripes = idleStripes;
+        return this;
+    }
+
+    /**
+     * Prefer channels on the callers event loop when a lease is requested from an event loop thread, so writes on
+     * the leased channel do not have to cross threads. Other callers, or a loop with no idle channels, get any
+     * idle channel.
+     * <p>If the BootstrapProvider is also an EventLoopBootstrapProvider new connections are spread evenly over the
+     * event loop group.</p>
+     *
+     * @param eventLoopAffinity true to enable.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withEventLoopAffinity(boolean eventLoopAffinity)
+    {
+        this.eventLoopAffinity = eventLoopAffinity;
+        return this;
+    }
+
+    /**
+     * The number of recently yielded channels remembered by each thread, defaults to 4.
+     * A thread leasing again gets its own recently yielded channel back without searching the idle channels.
+     *
+     * @param recentChannelsPerThread The number per thread, 0 to disable.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withRecentChannelsPerThread(int recentChannelsPerThread)
+    {
+        this.recentChannelsPerThread = recentChannelsPerThread;
+        return this;
+    }
+
+    /**
+     * Split waiting lease requests into priority lanes, lane 0 is served first.
+     * Under contention each waiting lane is served up to its weight in requests per round, so lower lanes are
+     * not starved. Defaults to a single lane.
+     *
+     * @param laneWeights The weight of each lane, each at least 1.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withLaneWeights(int... laneWeights)
+    {
+        this.laneWeights = laneWeights;
+        return this;
+    }
+
+    /**
+     * Picks the lane of each lease request from its user object, without one all requests go in lane 0.
+     *
+     * @param laneSelector The lane selector.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withLaneSelector(LaneSelector laneSelector)
+    {
+        this.laneSelector = laneSelector;
+        return this;
+    }
+
+    /**
+     * Run the pool on an event loop rather than a thread of its own, e.g. group.next() of the group the bootstrap
+     * uses. Connect results, closes and other channel callbacks on that loop are then handled inline, and
+     * leaseAsync() from that loop never leaves it.
+     * <p>Blocking leases on that loop are refused as they could never be granted. Stopping the pool does not shut
+     * the event loop down.</p>
+     *
+     * @param decoupler The event loop, null for a thread owned by the pool.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withDecoupler(EventExecutor decoupler)
+    {
+        this.decoupler = decoupler;
+        return this;
+    }
+
+    /**
+     * Run the pool on a scheduler shared with other pools rather than a thread of its own, so many pools multiplex
+     * onto a few threads. The scheduler may have several threads, each pool's tasks and timers still run one at a
+     * time.
+     * <p>Stopping the pool cancels its timers but does not shut the scheduler down.</p>
+     *
+     * @param scheduler The scheduler, null for a thread owned by the pool.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withScheduler(ScheduledExecutorService scheduler)
+    {
+        this.decoupler = scheduler;
+        return this;
+    }
+
+    /**
+     * The time source for lease expiry, ephemeral lifespans and acquire deadlines, defaults to Ticker.SYSTEM.
+     * <p>A SimulatedScheduler passed here and to withScheduler() runs the pool in virtual time.</p>
+     *
+     * @param ticker The ticker.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withTicker(Ticker ticker)
+    {
+        if (ticker == null)
+        {
+            throw new IllegalArgumentException("Ticker is null.");
+        }
+        this.ticker = ticker;
+        return this;
+    }
+
+    /**
+     * Routes the requests of a sharded pool by user object, without one they are routed by calling thread.
+     *
+     * @param shardSelector The shard selector.
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withShardSelector(ShardSelector shardSelector)
+    {
+        this.shardSelector = shardSelector;
+        return this;
+    }
+
+    /**
+     * Run the pool on the scheduler shared by every pool in the JVM that asks for it, see sharedScheduler().
+     *
+     * @return this.
+     */
+    public NettyConnectionPoolBuilder withSharedScheduler()
+    {
+        return withScheduler(sharedScheduler());
+    }
+
+    /**
+     * @return The JVM wide scheduler, one daemon thread per processor created on first use and never shut down.
+     */
+    public static ScheduledExecutorService sharedScheduler()
+    {
+        return SharedScheduler.INSTANCE;
+    }
+
+    private static class SharedScheduler
+    {
+        static final ScheduledThreadPoolExecutor INSTANCE = create();
+
+        private static ScheduledThreadPoolExecutor create()
+        {
+            final AtomicInteger count = new AtomicInteger();
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "poolnetty-shared-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
     public NettyConnectionPool build()
     {
         if (connectionInfoProvider == null)
@@ -229,6 +413,29 @@ public class NettyConnectionPoolBuilder
             };
         }
 
+        if (idleStripes < 1)
+        {
+            throw new IllegalArgumentException("Idle stripes must be at least 1.");
+        }
+
+        if (recentChannelsPerThread < 0)
+        {
+            throw new IllegalArgumentException("Recent channels per thread must not be negative.");
+        }
+
+        if (laneWeights == null || laneWeights.length == 0)
+        {
+            throw new IllegalArgumentException("At least one lane is required.");
+        }
+
+        for (int weight : laneWeights)
+        {
+            if (weight < 1)
+            {
+                throw new IllegalArgumentException("Lane weights must be at least 1.");
+            }
+        }
+
         if (poolExceptionHandler == null)
         {
             poolExceptionHandler = new PoolExceptionHandler()
@@ -269,6 +476,39 @@ public class NettyConnectionPoolBuilder
             immortalCount,
             maxEphemeralCount,
             ephemeralLifespanMillis,
-            inboundHandlerName, reaperIntervalMillis);
+            inboundHandlerName, reaperIntervalMillis,
+            idleStripes, eventLoopAffinity, recentChannelsPerThread,
+            laneWeights, laneSelector, decoupler, ticker);
+    }
+
+    /**
+     * Build a pool of independent shards, each built as build() would with the immortal and ephemeral counts of this
+     * builder, so the sharded pool holds shardCount times as many connections.
+     * <p>By default each shard has a decoupler thread of its own. A scheduler set with withScheduler() or
+     * withSharedScheduler() is shared by all the shards, they only run in parallel as far as it has threads to spare.
+     * An event loop set with withDecoupler() is refused, it would run every shard on one thread.</p>
+     *
+     * @param shardCount The number of shards.
+     * @return The sharded pool.
+     */
+    public ShardedConnectionPool buildSharded(int shardCount)
+    {
+        if (shardCount < 1)
+        {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+
+        if (decoupler instanceof EventExecutor)
+        {
+            throw new IllegalStateException("Shards can not share an event loop decoupler.");
+        }
+
+        List<NettyConnectionPool> shards = new ArrayList<>(shardCount);
+        for (int t = 0; t < shardCount; t++)
+        {
+            shards.add(build());
+        }
+        return new ShardedConnectionPool(shards, shardSelector);
     }
+
 }
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool;
+
+import org.r358.poolnetty.common.PoolProvider;
+import org.r358.poolnetty.common.PreGrantLease;
+
+/**
+ * Per thread cache of the channels each thread yielded most recently, like the thread local list in a ConcurrentBag.
+ * <p>A yield records the channel and its idle cycle on the yielding thread, once the decoupler has re-armed the
+ * channel a later lease on the same thread claims it straight from the cache without searching the idle channels.
+ * The channel stays in the idle channels meanwhile so any other thread can still steal it, the claim decides who
+ * gets it and the loser falls back to the usual search.</p>
+ * <p>Each thread has a fixed ring of entries so recording and taking do not allocate.</p>
+ * <p>Recent ephemeral channels are only reused when no immortal channel is idle, otherwise a busy thread would
+ * keep an ephemeral channel alive that should age out.</p>
+ */
+public class RecentChannels
+{
+    private final int size;
+
+    private final ThreadLocal<Ring> recent = new ThreadLocal<Ring>()
+    {
+        @Override
+        protected Ring initialValue()
+        {
+            return new Ring(size);
+        }
+    };
+
+    /**
+     * @param size The number of channels remembered per thread.
+     */
+    public RecentChannels(int size)
+    {
+        this.size = size;
+    }
+
+    /**
+     * Called on the yielding thread before the yield is handed to the decoupler, the oldest entry is forgotten
+     * once size is exceeded.
+     *
+     * @param ac The channel being yielded, it is still claimed by the lease.
+     */
+    public void yielded(AvailableChannel ac)
+    {
+        Ring ring = recent.get();
+        ring.channels[ring.next] = ac;
+        ring.cycles[ring.next] = ac.getCycle();
+        ring.next = (ring.next + 1) % size;
+    }
+
+    /**
+     * Claim the most recently yielded channel of the calling thread that is still idle.
+     *
+     * @param immortal      The immortal idle channels.
+     * @param ephemeral     The ephemeral idle channels.
+     * @param preGrantLease The PreGrantLease.
+     * @param provider      The provider, passed to the PreGrantLease.
+     * @param userObject    The user object, passed to the PreGrantLease.
+     * @return The claimed channel, already removed from its idle channels, or null.
+     */
+    public AvailableChannel take(IdleChannels immortal, IdleChannels ephemeral, PreGrantLease preGrantLease, PoolProvider provider, Object userObject)
+    {
+        Ring ring = recent.get();
+
+        for (int t = 1; t <= size; t++)
+        {
+            int i = (ring.next - t + size) % size;
+            AvailableChannel ac = ring.channels[i];
+            if (ac == null)
+            {
+                continue;
+            }
+
+            int cycle = ac.getCycle();
+            if (cycle == ring.cycles[i])
+            {
+                continue; // Yield not processed yet.
+            }
+
+            if (cycle != ring.cycles[i] + 1 || ac.isClaimed() || ac.getTag() != null)
+            {
+                ring.channels[i] = null; // Stolen, closed or tagged.
+                continue;
+            }
+
+            if (!ac.isImmortal() && !immortal.isEmpty())
+            {
+                continue;
+            }
+
+            if (preGrantLease.continueToGrantLease(ac.getChannel(), provider, userObject)
+                && (ac.isImmortal() ? immortal : ephemeral).unlink(ac))
+            {
+                ring.channels[i] = null;
+                return ac;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The recent channels of one thread.
+     */
+    private static class Ring
+    {
+        private final AvailableChannel[] channels;
+        private final int[] cycles;
+        private int next = 0;
+
+        private Ring(int size)
+        {
+            channels = new AvailableChannel[size];
+            cycles = new int[size];
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool;
+
+import io.netty.channel.Channel;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool made of independent shards, each a NettyConnectionPool with its own state and decoupler, behind one
+ * PoolProvider.
+ * <p>Each lease goes to the home shard of the request, picked by the ShardSelector from the user object or else by the
+ * calling thread. When the home shard has no idle channel the request goes to the first sibling that has one, and
+ * only waits or opens a connection on the home shard when none of them do. A leased channel is always yielded to the
+ * shard that opened it.</p>
+ * <p>Tagged leases go to a shard that has an idle channel with that tag, otherwise to the shard picked from the tag.
+ * Batches are not split, leaseMany() and leaseUpTo() are served by the home shard alone.</p>
+ */
+public class ShardedConnectionPool implements PoolProvider
+{
+    private final NettyConnectionPool[] shards;
+    private final ShardSelector shardSelector;
+
+    /**
+     * Threads are given home shards round robin the first time they lease.
+     */
+    private final AtomicInteger nextThreadShard = new AtomicInteger();
+
+    private final ThreadLocal<Integer> threadShard = new ThreadLocal<Integer>()
+    {
+        @Override
+        protected Integer initialValue()
+        {
+            return (nextThreadShard.getAndIncrement() & Integer.MAX_VALUE) % shards.length;
+        }
+    };
+
+    /**
+     * Create.
+     *
+     * @param shards        The shards, at least one.
+     * @param shardSelector Routes requests by user object, null to route by calling thread only.
+     */
+    public ShardedConnectionPool(List<NettyConnectionPool> shards, ShardSelector shardSelector)
+    {
+        if (shards.isEmpty())
+        {
+            throw new IllegalArgumentException("At least one shard is required.");
+        }
+
+        this.shards = shards.toArray(new NettyConnectionPool[shards.size()]);
+        this.shardSelector = shardSelector;
+    }
+
+    /**
+     * @return The shards.
+     */
+    public List<NettyConnectionPool> getShards()
+    {
+        return Collections.unmodifiableList(Arrays.asList(shards));
+    }
+
+    /**
+     * @param userObject The user object of the request.
+     * @return The index of the home shard of the request.
+     */
+    private int home(Object userObject)
+    {
+        if (shardSelector != null)
+        {
+            int shard = shardSelector.shardFor(userObject, shards.length);
+            if (shard >= 0)
+            {
+                return shard % shards.length;
+            }
+        }
+        return threadShard.get();
+    }
+
+    /**
+     * @param userObject The user object of the request.
+     * @return The home shard if it has an idle channel, else the first sibling that has one, else the home shard.
+     */
+    private NettyConnectionPool shardFor(Object userObject)
+    {
+        int home = home(userObject);
+        for (int t = 0; t < shards.length; t++)
+        {
+            NettyConnectionPool shard = shards[(home + t) % shards.length];
+            if (shard.hasIdle())
+            {
+                return shard;
+            }
+        }
+        return shards[home];
+    }
+
+    /**
+     * @param tag The tag.
+     * @return A shard with an idle channel for the tag, else the shard picked from the tag.
+     */
+    private NettyConnectionPool shardForTag(Object tag)
+    {
+        int home = (tag.hashCode() & Integer.MAX_VALUE) % shards.length;
+        for (int t = 0; t < shards.length; t++)
+        {
+            NettyConnectionPool shard = shards[(home + t) % shards.length];
+            if (shard.hasIdle(tag))
+            {
+                return shard;
+            }
+        }
+        return shards[home];
+    }
+
+    @Override
+    public Future<LeasedChannel> leaseAsync(int time, TimeUnit units, Object userObject)
+    {
+        return shardFor(userObject).leaseAsync(time, units, userObject);
+    }
+
+    @Override
+    public Future<LeasedChannel> leaseAsync(int time, TimeUnit units, Object userObject, LeaseListener listener)
+    {
+        return shardFor(userObject).leaseAsync(time, units, userObject, listener);
+    }
+
+    @Override
+    public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject)
+    {
+        return shardFor(userObject).leaseStage(time, units, userObject);
+    }
+
+    @Override
+    public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, Executor executor)
+    {
+        return shardFor(userObject).leaseStage(time, units, userObject, executor);
+    }
+
+    @Override
+    public LeasedChannel lease(int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        return shardFor(userObject).lease(leaseTime, units, userObject);
+    }
+
+    @Override
+    public LeasedChannel lease(int leaseTime, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits)
+        throws PoolProviderException
+    {
+        return shardFor(userObject).lease(leaseTime, units, userObject, acquireTimeout, acquireUnits);
+    }
+
+    @Override
+    public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits)
+    {
+        return shardFor(userObject).leaseStage(time, units, userObject, acquireTimeout, acquireUnits);
+    }
+
+    @Override
+    public LeasedChannel lease(Object tag, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        if (tag == null)
+        {
+            throw new IllegalArgumentException("Tag is null.");
+        }
+        return shardForTag(tag).lease(tag, leaseTime, units, userObject);
+    }
+
+    @Override
+    public void tag(Channel channel, Object tag)
+    {
+        shards[0].tag(channel, tag);
+    }
+
+    @Override
+    public Object getTag(Channel channel)
+    {
+        return shards[0].getTag(channel);
+    }
+
+    @Override
+    public LeasedChannel tryLease(int leaseTime, TimeUnit units, Object userObject)
+    {
+        return shardFor(userObject).tryLease(leaseTime, units, userObject);
+    }
+
+    @Override
+    public List<LeasedChannel> leaseMany(int count, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        return shards[home(userObject)].leaseMany(count, leaseTime, units, userObject);
+    }
+
+    @Override
+    public List<LeasedChannel> leaseUpTo(int count, int leaseTime, TimeUnit units, Object userObject)
+        throws PoolProviderException
+    {
+        return shards[home(userObject)].leaseUpTo(count, leaseTime, units, userObject);
+    }
+
+    @Override
+    public void yield(Channel channel)
+        throws PoolProviderException
+    {
+        NettyConnectionPool owner = NettyConnectionPool.poolOf(channel);
+        for (NettyConnectionPool shard : shards)
+        {
+            if (shard == owner)
+            {
+                shard.yield(channel);
+                return;
+            }
+        }
+        throw new PoolProviderException("Channel was not opened by this pool.");
+    }
+
+    /**
+     * Start every shard.
+     *
+     * @param timeToWait The time to wait for all of them.
+     * @param timeUnit   The time unit.
+     * @return true if every shard opened its immortal connections in time.
+     * @throws Exception
+     */
+    @Override
+    public boolean start(long timeToWait, TimeUnit timeUnit)
+        throws Exception
+    {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeToWait);
+        boolean all = true;
+        for (NettyConnectionPool shard : shards)
+        {
+            all &= shard.start(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        return all;
+    }
+
+    @Override
+    public void stop(boolean force)
+    {
+        for (NettyConnectionPool shard : shards)
+        {
+            shard.stop(force);
+        }
+    }
+
+    /**
+     * Execute on the decoupler of the calling thread's home shard.
+     *
+     * @param runnable The runnable.
+     */
+    @Override
+    public void execute(Runnable runnable)
+    {
+        shards[threadShard.get()].execute(runnable);
+    }
+
+    /**
+     * Add a listener to every shard, events name the shard as their provider.
+     *
+     * @param listener The listener.
+     */
+    @Override
+    public void addListener(PoolProviderListener listener)
+    {
+        for (NettyConnectionPool shard : shards)
+        {
+            shard.addListener(listener);
+        }
+    }
+
+    @Override
+    public void removeListener(PoolProviderListener listener)
+    {
+        for (NettyConnectionPool shard : shards)
+        {
+            shard.removeListener(listener);
+        }
+    }
+}
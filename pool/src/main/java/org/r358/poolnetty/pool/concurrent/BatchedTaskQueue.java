@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool.concurrent;
+
+import org.r358.poolnetty.common.PoolExceptionHandler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A lock free multi producer, single consumer task queue that is drained in batches on a target executor.
+ * <p>Producers link a node onto the tail, the first task queued after the queue went empty submits the drainer to the
+ * target, so the target sees one task per batch rather than one per command. A drainer runs at most batchSize tasks
+ * and then resubmits itself, which lets timers scheduled on the target run in between.</p>
+ * <p>Tasks are run in the order they were queued, an exception thrown by one is passed to the exception handler and
+ * the batch carries on.</p>
+ */
+public class BatchedTaskQueue implements Executor
+{
+    private static final AtomicReferenceFieldUpdater<Node, Node> NEXT =
+        AtomicReferenceFieldUpdater.newUpdater(Node.class, Node.class, "next");
+
+    private final Executor target;
+    private final int batchSize;
+    private final PoolExceptionHandler exceptionHandler;
+
+    /**
+     * Last node, producers swap themselves in.
+     */
+    private final AtomicReference<Node> tail;
+
+    /**
+     * Consumed node whose next is the next task, drainer only.
+     */
+    private Node head;
+
+    /**
+     * Number of tasks queued and not yet run, the drainer is submitted when this goes up from zero.
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private volatile boolean shutdown = false;
+
+    private final Runnable drainer = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * Create.
+     *
+     * @param target           The executor the batches run on, it must run them one at a time.
+     * @param batchSize        The most tasks to run before giving the target a turn.
+     * @param exceptionHandler Called with anything a task throws.
+     */
+    public BatchedTaskQueue(Executor target, int batchSize, PoolExceptionHandler exceptionHandler)
+    {
+        if (batchSize < 1)
+        {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+
+        this.target = target;
+        this.batchSize = batchSize;
+        this.exceptionHandler = exceptionHandler;
+        this.head = new Node(null);
+        this.tail = new AtomicReference<>(head);
+    }
+
+    /**
+     * Queue a task.
+     *
+     * @param task The task.
+     * @throws RejectedExecutionException if the target rejects the drainer.
+     */
+    @Override
+    public void execute(Runnable task)
+    {
+        if (task == null)
+        {
+            throw new NullPointerException("Task is null.");
+        }
+
+        Node node = new Node(task);
+        NEXT.lazySet(tail.getAndSet(node), node);
+
+        if (wip.getAndIncrement() == 0)
+        {
+            target.execute(drainer);
+        }
+    }
+
+    /**
+     * Stop running tasks, a batch in progress stops before its next task and anything queued is dropped.
+     */
+    public void shutdown()
+    {
+        shutdown = true;
+    }
+
+    /**
+     * @return The number of tasks waiting to run, an estimate while producers are active.
+     */
+    public int size()
+    {
+        return wip.get();
+    }
+
+    private void drain()
+    {
+        int budget = batchSize;
+        int todo = wip.get();
+
+        for (; ; )
+        {
+            int n = Math.min(todo, budget);
+            for (int t = 0; t < n; t++)
+            {
+                if (shutdown)
+                {
+                    return;
+                }
+
+                Runnable task = poll();
+                try
+                {
+                    task.run();
+                }
+                catch (Throwable th)
+                {
+                    exceptionHandler.handleException(th);
+                }
+            }
+
+            budget -= n;
+            todo = wip.addAndGet(-n);
+            if (todo == 0)
+            {
+                return;
+            }
+
+            if (budget == 0)
+            {
+                try
+                {
+                    target.execute(drainer);
+                }
+                catch (RejectedExecutionException rex)
+                {
+                    // Target has shut down, nothing left to run the tasks on.
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Take the next task, only called when wip says there is one.
+     * A producer that has swapped the tail but not yet linked its node is waited for, this is a few instructions.
+     *
+     * @return The task.
+     */
+    private Runnable poll()
+    {
+        Node next;
+        while ((next = head.next) == null)
+        {
+            Thread.yield();
+        }
+
+        Runnable task = next.task;
+        next.task = null;
+        head = next;
+        return task;
+    }
+
+    private static final class Node
+    {
+        volatile Node next;
+        Runnable task;
+
+        Node(Runnable task)
+        {
+            this.task = task;
+        }
+    }
+}
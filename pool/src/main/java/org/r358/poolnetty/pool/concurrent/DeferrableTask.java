@@ -67,6 +67,20 @@ public abstract class DeferrableTask<V> implements Runnable
         latch.countDown();
     }
 
+    protected void setException(Throwable throwable)
+    {
+        this.executionException = new ExecutionException(throwable);
+        latch.countDown();
+    }
+
+    /**
+     * @return true once a result or exception has been set.
+     */
+    public boolean isDone()
+    {
+        return latch.getCount() == 0;
+    }
+
 
     public V get()
         throws InterruptedException, ExecutionException
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.pool.concurrent;
+
+import org.r358.poolnetty.common.Ticker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+
+/**
+ * A scheduler with virtual time for tests and simulations, nothing runs until the thread driving it calls
+ * runPending() or advance().
+ * <p>Pass it to both NettyConnectionPoolBuilder#withScheduler() and #withTicker() and the pool's tasks, reapers,
+ * lifespans and acquire timeouts all run in its time, so hours of pool behaviour take as long as the work itself.
+ * Tasks may be handed over from any thread, e.g. connect results from an event loop, they all run on the driving
+ * thread in due time order and, for equal times, in the order they were handed over.</p>
+ * <p>The driving thread must not block on the pool, start it with a zero wait and use asynchronous leases.</p>
+ */
+public class SimulatedScheduler extends AbstractExecutorService implements ScheduledExecutorService, Ticker
+{
+    private final PriorityQueue<SimulatedTask<?>> queue = new PriorityQueue<>();
+    private long sequence = 0;
+    private volatile long now;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create with the clock at zero.
+     */
+    public SimulatedScheduler()
+    {
+        this(0);
+    }
+
+    /**
+     * Create.
+     *
+     * @param startMillis The initial time.
+     */
+    public SimulatedScheduler(long startMillis)
+    {
+        this.now = startMillis;
+    }
+
+    @Override
+    public long millis()
+    {
+        return now;
+    }
+
+    /**
+     * Run every task that is due, including tasks they hand over that are due straight away.
+     *
+     * @return The number of tasks run.
+     */
+    public int runPending()
+    {
+        return runUntil(now);
+    }
+
+    /**
+     * Move the clock forward, running everything due on the way at its own time.
+     *
+     * @param time  The time to advance by.
+     * @param units The units.
+     * @return The number of tasks run.
+     */
+    public int advance(long time, TimeUnit units)
+    {
+        if (time < 0)
+        {
+            throw new IllegalArgumentException("Time can not go backwards.");
+        }
+        return runUntil(now + units.toMillis(time));
+    }
+
+    /**
+     * @return The time of the next task, or -1 if none is queued.
+     */
+    public synchronized long nextTaskTime()
+    {
+        SimulatedTask<?> next = queue.peek();
+        return next == null ? -1 : next.time;
+    }
+
+    private int runUntil(long target)
+    {
+        int ran = 0;
+        SimulatedTask<?> task;
+        while ((task = pollDue(target)) != null)
+        {
+            if (task.time > now)
+            {
+                now = task.time;
+            }
+            task.run();
+            ran++;
+        }
+        now = Math.max(now, target);
+        return ran;
+    }
+
+    private synchronized SimulatedTask<?> pollDue(long target)
+    {
+        SimulatedTask<?> next = queue.peek();
+        if (next == null || next.time > target)
+        {
+            return null;
+        }
+        return queue.poll();
+    }
+
+    private <V> SimulatedTask<V> enqueue(SimulatedTask<V> task)
+    {
+        synchronized (this)
+        {
+            if (shutdown)
+            {
+                throw new RejectedExecutionException("Scheduler has shut down.");
+            }
+            task.sequence = sequence++;
+            queue.add(task);
+        }
+        return task;
+    }
+
+    private synchronized void remove(SimulatedTask<?> task)
+    {
+        queue.remove(task);
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        enqueue(new SimulatedTask<Void>(command, null, now, 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit)
+    {
+        return enqueue(new SimulatedTask<Void>(command, null, now + Math.max(0, unit.toMillis(delay)), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit)
+    {
+        return enqueue(new SimulatedTask<V>(callable, now + Math.max(0, unit.toMillis(delay))));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit)
+    {
+        if (period <= 0)
+        {
+            throw new IllegalArgumentException("Period must be positive.");
+        }
+        return enqueue(new SimulatedTask<Void>(command, null, now + Math.max(0, unit.toMillis(initialDelay)), Math.max(1, unit.toMillis(period))));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit)
+    {
+        if (delay <= 0)
+        {
+            throw new IllegalArgumentException("Delay must be positive.");
+        }
+        return enqueue(new SimulatedTask<Void>(command, null, now + Math.max(0, unit.toMillis(initialDelay)), -Math.max(1, unit.toMillis(delay))));
+    }
+
+    @Override
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow()
+    {
+        shutdown = true;
+        List<Runnable> out = new ArrayList<Runnable>(queue);
+        queue.clear();
+        return out;
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated()
+    {
+        return shutdown && queue.isEmpty();
+    }
+
+    /**
+     * Nothing runs on its own, so this returns straight away.
+     */
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+    {
+        return isTerminated();
+    }
+
+    /**
+     * A task due at a virtual time, periodic when period is non zero, negative for a fixed delay.
+     */
+    private class SimulatedTask<V> extends FutureTask<V> implements RunnableScheduledFuture<V>
+    {
+        private long time;
+        private long sequence;
+        private final long period;
+
+        SimulatedTask(Runnable runnable, V result, long time, long period)
+        {
+            super(runnable, result);
+            this.time = time;
+            this.period = period;
+        }
+
+        SimulatedTask(Callable<V> callable, long time)
+        {
+            super(callable);
+            this.time = time;
+            this.period = 0;
+        }
+
+        @Override
+        public boolean isPeriodic()
+        {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(time - now, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o)
+        {
+            if (o == this)
+            {
+                return 0;
+            }
+            if (o instanceof SimulatedTask)
+            {
+                SimulatedTask<?> other = (SimulatedTask<?>)o;
+                if (time != other.time)
+                {
+                    return time < other.time ? -1 : 1;
+                }
+                return sequence < other.sequence ? -1 : 1;
+            }
+            long diff = getDelay(TimeUnit.MILLISECONDS) - o.getDelay(TimeUnit.MILLISECONDS);
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning)
+        {
+            boolean canceled = super.cancel(mayInterruptIfRunning);
+            if (canceled)
+            {
+                remove(this);
+            }
+            return canceled;
+        }
+
+        @Override
+        public void run()
+        {
+            if (!isPeriodic())
+            {
+                super.run();
+                return;
+            }
+
+            if (runAndReset() && !shutdown)
+            {
+                time = period > 0 ? time + period : now - period;
+                enqueue(this);
+            }
+        }
+    }
+}
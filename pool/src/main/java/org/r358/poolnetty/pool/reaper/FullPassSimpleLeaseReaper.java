@@ -34,7 +34,12 @@ public class FullPassSimpleLeaseReaper
     @Override
     public List<LeasedContext> reapHarvest(List<LeasedContext> currentLeases)
     {
-        long zeit = System.currentTimeMillis();
+        return reapHarvest(currentLeases, System.currentTimeMillis());
+    }
+
+    @Override
+    public List<LeasedContext> reapHarvest(List<LeasedContext> currentLeases, long zeit)
+    {
         List<LeasedContext> toBeExpired = null;
         for (LeasedContext lc : currentLeases)
         {
@@ -35,10 +35,14 @@ public class HeadSamplingLeaseReaper implements LeaseExpiryReaper
     @Override
     public List<LeasedContext> reapHarvest(List<LeasedContext> currentLeases)
     {
+        return reapHarvest(currentLeases, System.currentTimeMillis());
+    }
 
-        ArrayList<LeasedContext> out = new ArrayList<>();
+    @Override
+    public List<LeasedContext> reapHarvest(List<LeasedContext> currentLeases, long zeit)
+    {
 
-        long zeit = System.currentTimeMillis();
+        ArrayList<LeasedContext> out = new ArrayList<>();
 
         for (LeasedContext lc : currentLeases)
         {
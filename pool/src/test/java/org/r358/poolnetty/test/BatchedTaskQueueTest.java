@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.PoolExceptionHandler;
+import org.r358.poolnetty.pool.concurrent.BatchedTaskQueue;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test the batched task queue.
+ */
+@RunWith(JUnit4.class)
+public class BatchedTaskQueueTest
+{
+
+    /**
+     * Holds submitted drainers until run() is called.
+     */
+    private static class ManualExecutor implements Executor
+    {
+        final ArrayDeque<Runnable> submitted = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command)
+        {
+            submitted.add(command);
+        }
+
+        void runAll()
+        {
+            while (!submitted.isEmpty())
+            {
+                submitted.poll().run();
+            }
+        }
+    }
+
+    private static final PoolExceptionHandler RETHROW = new PoolExceptionHandler()
+    {
+        @Override
+        public void handleException(Throwable th)
+        {
+            throw new AssertionError(th);
+        }
+    };
+
+
+    @Test
+    public void testOneSubmissionPerBatch()
+        throws Exception
+    {
+        ManualExecutor target = new ManualExecutor();
+        BatchedTaskQueue queue = new BatchedTaskQueue(target, 4, RETHROW);
+
+        final List<Integer> ran = new ArrayList<>();
+        for (int t = 0; t < 10; t++)
+        {
+            final int id = t;
+            queue.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ran.add(id);
+                }
+            });
+        }
+
+        TestCase.assertEquals("One drainer for the lot.", 1, target.submitted.size());
+        TestCase.assertEquals(10, queue.size());
+
+        //
+        // Each batch of four resubmits the drainer for the rest.
+        //
+        target.submitted.poll().run();
+        TestCase.assertEquals(4, ran.size());
+        TestCase.assertEquals(1, target.submitted.size());
+
+        target.runAll();
+        TestCase.assertEquals(10, ran.size());
+        for (int t = 0; t < 10; t++)
+        {
+            TestCase.assertEquals(t, ran.get(t).intValue());
+        }
+        TestCase.assertEquals(0, queue.size());
+
+        //
+        // Empty again, the next task submits a new drainer.
+        //
+        queue.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.add(10);
+            }
+        });
+        TestCase.assertEquals(1, target.submitted.size());
+        target.runAll();
+        TestCase.assertEquals(11, ran.size());
+    }
+
+
+    @Test
+    public void testTaskQueuedByTaskRunsInSameBatch()
+        throws Exception
+    {
+        ManualExecutor target = new ManualExecutor();
+        final BatchedTaskQueue queue = new BatchedTaskQueue(target, 16, RETHROW);
+        final List<String> ran = new ArrayList<>();
+
+        queue.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.add("first");
+                queue.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        ran.add("second");
+                    }
+                });
+            }
+        });
+
+        target.submitted.poll().run();
+        TestCase.assertEquals(2, ran.size());
+        TestCase.assertEquals("second", ran.get(1));
+        TestCase.assertTrue(target.submitted.isEmpty());
+    }
+
+
+    @Test
+    public void testExceptionDoesNotStopBatch()
+        throws Exception
+    {
+        ManualExecutor target = new ManualExecutor();
+        final List<Throwable> caught = new ArrayList<>();
+        BatchedTaskQueue queue = new BatchedTaskQueue(target, 16, new PoolExceptionHandler()
+        {
+            @Override
+            public void handleException(Throwable th)
+            {
+                caught.add(th);
+            }
+        });
+
+        final AtomicInteger ran = new AtomicInteger();
+        queue.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new IllegalStateException("Boom");
+            }
+        });
+        queue.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.incrementAndGet();
+            }
+        });
+
+        target.runAll();
+        TestCase.assertEquals(1, caught.size());
+        TestCase.assertTrue(caught.get(0) instanceof IllegalStateException);
+        TestCase.assertEquals(1, ran.get());
+    }
+
+
+    @Test
+    public void testShutdownDropsQueued()
+        throws Exception
+    {
+        ManualExecutor target = new ManualExecutor();
+        final BatchedTaskQueue queue = new BatchedTaskQueue(target, 16, RETHROW);
+        final AtomicInteger ran = new AtomicInteger();
+
+        queue.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.incrementAndGet();
+                queue.shutdown();
+            }
+        });
+        queue.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                ran.incrementAndGet();
+            }
+        });
+
+        target.runAll();
+        TestCase.assertEquals(1, ran.get());
+    }
+
+
+    /**
+     * Many producers, one consumer thread, every task runs once and each producer's tasks run in order.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testManyProducers()
+        throws Exception
+    {
+        final int producers = 8;
+        final int perProducer = 100000;
+
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        final BatchedTaskQueue queue = new BatchedTaskQueue(consumer, 64, RETHROW);
+
+        final int[] last = new int[producers];
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(producers * perProducer);
+
+        ExecutorService producerPool = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++)
+        {
+            final int producer = p;
+            producerPool.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int t = 1; t <= perProducer; t++)
+                    {
+                        final int seq = t;
+                        queue.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                // Consumer thread only.
+                                if (last[producer] != seq - 1)
+                                {
+                                    outOfOrder.incrementAndGet();
+                                }
+                                last[producer] = seq;
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            });
+        }
+
+        TestCase.assertTrue("Not all tasks ran.", done.await(30, TimeUnit.SECONDS));
+        TestCase.assertEquals(0, outOfOrder.get());
+
+        producerPool.shutdown();
+        consumer.shutdown();
+    }
+}
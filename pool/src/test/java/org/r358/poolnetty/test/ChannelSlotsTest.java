@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.LeasedContext;
+import org.r358.poolnetty.pool.AvailableChannel;
+import org.r358.poolnetty.pool.ChannelSlots;
+
+import java.util.List;
+
+/**
+ *
+ */
+@RunWith(JUnit4.class)
+public class ChannelSlotsTest
+{
+
+    private static Channel channel()
+    {
+        return new EmbeddedChannel(new ChannelInboundHandlerAdapter());
+    }
+
+    private ChannelSlots.Slot open(ChannelSlots slots, Channel channel, boolean immortal)
+    {
+        ChannelSlots.Slot slot = slots.reserve(immortal);
+        slots.bind(slot, channel);
+        slots.idle(slot, new AvailableChannel(-1, channel, -1, immortal));
+        return slot;
+    }
+
+    @Test
+    public void testLifecycle()
+        throws Exception
+    {
+        ChannelSlots slots = new ChannelSlots(2);
+        Channel channel = channel();
+
+        ChannelSlots.Slot slot = slots.reserve(false);
+        TestCase.assertEquals(ChannelSlots.State.CONNECTING, slot.getState());
+        TestCase.assertEquals(1, slots.ephemeralCount());
+        TestCase.assertNull(slots.slotOf(channel));
+
+        slots.bind(slot, channel);
+        TestCase.assertSame(slot, slots.slotOf(channel));
+
+        AvailableChannel ac = new AvailableChannel(0, channel, 100, false);
+        slots.idle(slot, ac);
+        TestCase.assertEquals(ChannelSlots.State.IDLE, slot.getState());
+        TestCase.assertSame(ac, slot.getAvailable());
+
+        LeasedContext lc = new LeasedContext(1, 0, channel, false, null, 100);
+        slots.lease(slot, lc);
+        TestCase.assertEquals(ChannelSlots.State.LEASED, slot.getState());
+        TestCase.assertSame(lc, slot.getLease());
+        TestCase.assertEquals(1, slots.leasedCount());
+
+        slots.idle(slot, ac);
+        TestCase.assertEquals(0, slots.leasedCount());
+        TestCase.assertNull(slot.getLease());
+
+        slots.lease(slot, lc);
+        slots.closing(slot);
+        TestCase.assertEquals(ChannelSlots.State.CLOSING, slot.getState());
+        TestCase.assertEquals(0, slots.leasedCount());
+        TestCase.assertSame(slot, slots.slotOf(channel));
+
+        slots.release(slot);
+        TestCase.assertEquals(ChannelSlots.State.FREE, slot.getState());
+        TestCase.assertEquals(0, slots.ephemeralCount());
+        TestCase.assertNull(slots.slotOf(channel));
+        TestCase.assertNull(ChannelSlots.peek(channel));
+
+        //
+        // A second release must not free the slot twice.
+        //
+        slots.release(slot);
+        TestCase.assertNotSame(slots.reserve(true), slots.reserve(true));
+    }
+
+
+    @Test
+    public void testSlotsAreReused()
+        throws Exception
+    {
+        ChannelSlots slots = new ChannelSlots(2);
+
+        ChannelSlots.Slot a = open(slots, channel(), true);
+        ChannelSlots.Slot b = open(slots, channel(), true);
+        TestCase.assertNotSame(a, b);
+
+        slots.release(a);
+        TestCase.assertSame(a, slots.reserve(true));
+    }
+
+
+    /**
+     * Opening a replacement before the old connection has closed grows the table.
+     */
+    @Test
+    public void testGrows()
+        throws Exception
+    {
+        ChannelSlots slots = new ChannelSlots(1);
+
+        Channel first = channel();
+        Channel second = channel();
+        ChannelSlots.Slot a = open(slots, first, true);
+        ChannelSlots.Slot b = open(slots, second, true);
+
+        TestCase.assertSame(a, slots.slotOf(first));
+        TestCase.assertSame(b, slots.slotOf(second));
+    }
+
+
+    /**
+     * A channel that belongs to another table is not found.
+     */
+    @Test
+    public void testForeignChannel()
+        throws Exception
+    {
+        ChannelSlots mine = new ChannelSlots(1);
+        ChannelSlots other = new ChannelSlots(1);
+
+        Channel channel = channel();
+        open(other, channel, true);
+
+        TestCase.assertNull(mine.slotOf(channel));
+    }
+
+
+    @Test
+    public void testLeasesAreOldestFirst()
+        throws Exception
+    {
+        ChannelSlots slots = new ChannelSlots(3);
+
+        for (long id : new long[]{5, 2, 9})
+        {
+            Channel channel = channel();
+            ChannelSlots.Slot slot = open(slots, channel, true);
+            slots.lease(slot, new LeasedContext(id, 0, channel, true, null, -1));
+        }
+
+        List<LeasedContext> leases = slots.leases();
+        TestCase.assertEquals(3, leases.size());
+        TestCase.assertEquals(2, leases.get(0).getLeaseID());
+        TestCase.assertEquals(5, leases.get(1).getLeaseID());
+        TestCase.assertEquals(9, leases.get(2).getLeaseID());
+    }
+
+
+    @Test
+    public void testLeasedByID()
+        throws Exception
+    {
+        ChannelSlots slots = new ChannelSlots(1);
+
+        Channel channel = channel();
+        ChannelSlots.Slot slot = open(slots, channel, true);
+        TestCase.assertNull(slots.leased(channel, 1));
+
+        slots.lease(slot, new LeasedContext(1, 0, channel, true, null, -1));
+        TestCase.assertSame(slot, slots.leased(channel, 1));
+        TestCase.assertNull(slots.leased(channel, 2));
+    }
+
+
+    /**
+     * Leases are identified by id only, the user object plays no part.
+     */
+    @Test
+    public void testLeaseIdentity()
+        throws Exception
+    {
+        Channel channel = channel();
+        LeasedContext a = new LeasedContext(7, 10, channel, true, "a", -1);
+        LeasedContext b = new LeasedContext(7, 20, channel, true, new Object()
+        {
+            @Override
+            public int hashCode()
+            {
+                throw new IllegalStateException("User hashCode called.");
+            }
+        }, -1);
+
+        TestCase.assertEquals(a, b);
+        TestCase.assertEquals(a.hashCode(), b.hashCode());
+        TestCase.assertFalse(a.equals(new LeasedContext(8, 10, channel, true, "a", -1)));
+    }
+}
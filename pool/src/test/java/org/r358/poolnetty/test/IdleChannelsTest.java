@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test;
+
+import io.netty.channel.Channel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.PoolProvider;
+import org.r358.poolnetty.common.PreGrantLease;
+import org.r358.poolnetty.pool.AvailableChannel;
+import org.r358.poolnetty.pool.IdleChannels;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ */
+@RunWith(JUnit4.class)
+public class IdleChannelsTest
+{
+    private static final PreGrantLease GRANT_ALL = new PreGrantLease()
+    {
+        @Override
+        public boolean continueToGrantLease(Channel channel, PoolProvider provider, Object userObject)
+        {
+            return true;
+        }
+    };
+
+
+    @Test
+    public void testTakeIsLastInFirstOut()
+        throws Exception
+    {
+        IdleChannels idle = new IdleChannels(1, false);
+
+        AvailableChannel a = new AvailableChannel(-1, null, -1, true);
+        AvailableChannel b = new AvailableChannel(-1, null, -1, true);
+        idle.offer(a);
+        idle.offer(b);
+
+        TestCase.assertEquals(2, idle.size());
+        TestCase.assertSame(b, idle.take(GRANT_ALL, null, null));
+        TestCase.assertSame(a, idle.take(GRANT_ALL, null, null));
+        TestCase.assertNull(idle.take(GRANT_ALL, null, null));
+        TestCase.assertTrue(idle.isEmpty());
+    }
+
+
+    /**
+     * Channels rejected by the PreGrantLease must be stepped over and left where they are.
+     */
+    @Test
+    public void testRejectedAreNotShuffled()
+        throws Exception
+    {
+        IdleChannels idle = new IdleChannels(1, false);
+
+        final List<AvailableChannel> channels = new ArrayList<>();
+        for (int t = 0; t < 5; t++)
+        {
+            AvailableChannel ac = new AvailableChannel(-1, null, -1, true);
+            channels.add(ac);
+            idle.offer(ac);
+        }
+
+        final AvailableChannel wanted = channels.get(1);
+        final List<Object> considered = new ArrayList<>();
+
+        AvailableChannel taken = idle.take(new PreGrantLease()
+        {
+            @Override
+            public boolean continueToGrantLease(Channel channel, PoolProvider provider, Object userObject)
+            {
+                considered.add(userObject);
+                return considered.size() == 4; // Head is channels[4], so the 4th is channels[1].
+            }
+        }, null, "x");
+
+        TestCase.assertSame(wanted, taken);
+        TestCase.assertEquals(4, considered.size());
+        TestCase.assertEquals(4, idle.size());
+
+        //
+        // Order of the remainder is unchanged.
+        //
+        TestCase.assertSame(channels.get(4), idle.take(GRANT_ALL, null, null));
+        TestCase.assertSame(channels.get(3), idle.take(GRANT_ALL, null, null));
+        TestCase.assertSame(channels.get(2), idle.take(GRANT_ALL, null, null));
+        TestCase.assertSame(channels.get(0), idle.take(GRANT_ALL, null, null));
+    }
+
+
+    /**
+     * A take empties the home stripe of the calling thread before it steals from another stripe.
+     */
+    @Test
+    public void testDrainHomeStripeThenSteal()
+        throws Exception
+    {
+        IdleChannels idle = new IdleChannels(4, false);
+        int home = idle.homeStripe();
+        int other = (home + 2) & 3;
+
+        AvailableChannel elsewhere = new AvailableChannel(-1, null, -1, true);
+        idle.offer(elsewhere, other);
+
+        AvailableChannel a = new AvailableChannel(-1, null, -1, true);
+        AvailableChannel b = new AvailableChannel(-1, null, -1, true);
+        idle.offer(a);
+        idle.offer(b);
+        TestCase.assertEquals(home, a.getStripe());
+        TestCase.assertEquals(other, elsewhere.getStripe());
+
+        TestCase.assertSame(b, idle.take(GRANT_ALL, null, null));
+        TestCase.assertSame(a, idle.take(GRANT_ALL, null, null));
+
+        //
+        // Home stripe is empty, the next take steals.
+        //
+        TestCase.assertSame(elsewhere, idle.take(GRANT_ALL, null, null));
+        TestCase.assertNull(idle.take(GRANT_ALL, null, null));
+        TestCase.assertTrue(idle.isEmpty());
+    }
+
+
+    @Test
+    public void testRemoveInPlace()
+        throws Exception
+    {
+        IdleChannels idle = new IdleChannels(2, false);
+
+        List<AvailableChannel> channels = new ArrayList<>();
+        for (int t = 0; t < 10; t++)
+        {
+            AvailableChannel ac = new AvailableChannel(-1, null, -1, true);
+            channels.add(ac);
+            idle.add(ac);
+        }
+
+        TestCase.assertTrue(idle.remove(channels.get(3)));
+        TestCase.assertFalse("Already removed.", idle.remove(channels.get(3)));
+        TestCase.assertEquals(9, idle.size());
+
+        for (AvailableChannel ac : idle)
+        {
+            TestCase.assertNotSame(channels.get(3), ac);
+        }
+
+        //
+        // A taken channel can not be removed.
+        //
+        AvailableChannel taken = idle.take(GRANT_ALL, null, null);
+        TestCase.assertFalse(idle.remove(taken));
+        TestCase.assertEquals(8, idle.size());
+
+        int count = 0;
+        while (idle.take(GRANT_ALL, null, null) != null)
+        {
+            count++;
+        }
+
+        TestCase.assertEquals(8, count);
+        TestCase.assertTrue(idle.isEmpty());
+    }
+}
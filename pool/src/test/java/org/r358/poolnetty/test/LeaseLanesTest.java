@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.pool.LeaseLanes;
+
+/**
+ *
+ */
+@RunWith(JUnit4.class)
+public class LeaseLanesTest
+{
+
+    @Test
+    public void testFifoWithinLane()
+        throws Exception
+    {
+        LeaseLanes<String> lanes = new LeaseLanes<>(new int[]{1});
+        TestCase.assertTrue(lanes.isEmpty());
+        TestCase.assertNull(lanes.pollFirst());
+
+        lanes.addLast("a", 0);
+        lanes.addLast("b", 0);
+        TestCase.assertEquals(2, lanes.stats(0).getDepth());
+
+        TestCase.assertEquals("a", lanes.peekFirst());
+        TestCase.assertEquals("a", lanes.pollFirst());
+        TestCase.assertEquals("b", lanes.pollFirst());
+        TestCase.assertTrue(lanes.isEmpty());
+        TestCase.assertEquals(0, lanes.stats(0).getDepth());
+    }
+
+
+    /**
+     * A polled request put back keeps its place ahead of those behind it.
+     */
+    @Test
+    public void testAddFirstKeepsPlace()
+        throws Exception
+    {
+        LeaseLanes<String> lanes = new LeaseLanes<>(new int[]{1});
+
+        lanes.addLast("a", 0);
+        lanes.addLast("b", 0);
+
+        String head = lanes.pollFirst();
+        lanes.addFirst(head, 0);
+        TestCase.assertEquals(2, lanes.size());
+        TestCase.assertEquals("a", lanes.pollFirst());
+        TestCase.assertEquals("b", lanes.pollFirst());
+    }
+
+
+    @Test
+    public void testHigherLaneFirst()
+        throws Exception
+    {
+        LeaseLanes<String> lanes = new LeaseLanes<>(new int[]{1, 1});
+
+        lanes.addLast("low", 1);
+        lanes.addLast("high", 0);
+
+        TestCase.assertEquals("high", lanes.peekFirst());
+        TestCase.assertEquals("high", lanes.pollFirst());
+        TestCase.assertEquals("low", lanes.pollFirst());
+    }
+
+
+    /**
+     * Each waiting lane is served its weight per round so the lower lane is not starved.
+     */
+    @Test
+    public void testWeightedRounds()
+        throws Exception
+    {
+        LeaseLanes<String> lanes = new LeaseLanes<>(new int[]{3, 1});
+
+        for (int t = 0; t < 6; t++)
+        {
+            lanes.addLast("0", 0);
+        }
+        for (int t = 0; t < 4; t++)
+        {
+            lanes.addLast("1", 1);
+        }
+
+        StringBuilder order = new StringBuilder();
+        while (!lanes.isEmpty())
+        {
+            order.append(lanes.pollFirst());
+        }
+
+        TestCase.assertEquals("0001000111", order.toString());
+    }
+
+
+    /**
+     * A request that is polled and put back does not use up the share of its lane.
+     */
+    @Test
+    public void testWeightedRoundsWithRedefer()
+        throws Exception
+    {
+        LeaseLanes<String> lanes = new LeaseLanes<>(new int[]{3, 1});
+
+        for (int t = 0; t < 6; t++)
+        {
+            lanes.addLast("0", 0);
+        }
+        for (int t = 0; t < 4; t++)
+        {
+            lanes.addLast("1", 1);
+        }
+
+        //
+        // Every request is deferred once before it is served, the order is the same as without.
+        //
+        StringBuilder order = new StringBuilder();
+        while (!lanes.isEmpty())
+        {
+            String head = lanes.peekFirst();
+            lanes.addFirst(lanes.pollFirst(), head.equals("0") ? 0 : 1);
+            order.append(lanes.pollFirst());
+        }
+
+        TestCase.assertEquals("0001000111", order.toString());
+    }
+
+
+    @Test
+    public void testRemove()
+        throws Exception
+    {
+        LeaseLanes<String> lanes = new LeaseLanes<>(new int[]{1, 1});
+
+        lanes.addLast("a", 1);
+        TestCase.assertFalse(lanes.remove("a", 0));
+        TestCase.assertTrue(lanes.remove("a", 1));
+        TestCase.assertTrue(lanes.isEmpty());
+        TestCase.assertEquals(0, lanes.stats(1).getDepth());
+    }
+}
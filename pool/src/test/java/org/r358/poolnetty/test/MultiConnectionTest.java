@@ -20,6 +20,8 @@
 package org.r358.poolnetty.test;
 
 import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.ChannelSlots;
+import org.r358.poolnetty.pool.IdleChannels;
 import org.r358.poolnetty.pool.NettyConnectionPool;
 import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
 import org.r358.poolnetty.pool.reaper.FullPassSimpleLeaseReaper;
@@ -41,7 +43,6 @@ import org.junit.runners.JUnit4;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -209,8 +210,8 @@ public class MultiConnectionTest
 
         TestCase.assertTrue(ncp.start(10, TimeUnit.SECONDS));
 
-        TestCase.assertEquals(5, ((List)TestUtil.getField(ncp, "immortalContexts")).size());
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "ephemeralContexts")).size());
+        TestCase.assertEquals(5, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "ephemeralContexts")).size());
 
         //
         // Lease all 15 connections which is 5 immortal and 10 ephemeral.
@@ -227,11 +228,10 @@ public class MultiConnectionTest
         TestCase.assertTrue(leaseAll.await(5, TimeUnit.SECONDS));
 
 
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "immortalContexts")).size());
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "ephemeralContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "ephemeralContexts")).size());
 
-        TestCase.assertEquals(maxAll, ((List)TestUtil.getField(ncp, "leasedContexts")).size());
-        TestCase.assertEquals(maxAll, ((Set)TestUtil.getField(ncp, "leasedContextSet")).size());
+        TestCase.assertEquals(maxAll, ((ChannelSlots)TestUtil.getField(ncp, "slots")).leasedCount());
 
 
         //
@@ -254,12 +254,11 @@ public class MultiConnectionTest
         TestCase.assertTrue(openedConnections.await(10, TimeUnit.SECONDS));
 
 
-        TestCase.assertEquals(5, ((List)TestUtil.getField(ncp, "immortalContexts")).size());
+        TestCase.assertEquals(5, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size());
 
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "ephemeralContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "ephemeralContexts")).size());
 
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "leasedContexts")).size());
-        TestCase.assertEquals(0, ((Set)TestUtil.getField(ncp, "leasedContextSet")).size());
+        TestCase.assertEquals(0, ((ChannelSlots)TestUtil.getField(ncp, "slots")).leasedCount());
 
 
         simpleServer.stop();
@@ -417,8 +416,8 @@ public class MultiConnectionTest
 
         TestCase.assertTrue(ncp.start(10, TimeUnit.SECONDS));
 
-        TestCase.assertEquals(5, ((List)TestUtil.getField(ncp, "immortalContexts")).size());
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "ephemeralContexts")).size());
+        TestCase.assertEquals(5, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "ephemeralContexts")).size());
 
         //
         // Lease all 15 connections which is 5 immortal and 10 ephemeral.
@@ -435,11 +434,10 @@ public class MultiConnectionTest
         TestCase.assertTrue(leaseAll.await(5, TimeUnit.SECONDS));
 
 
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "immortalContexts")).size());
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "ephemeralContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "ephemeralContexts")).size());
 
-        TestCase.assertEquals(maxAll, ((List)TestUtil.getField(ncp, "leasedContexts")).size());
-        TestCase.assertEquals(maxAll, ((Set)TestUtil.getField(ncp, "leasedContextSet")).size());
+        TestCase.assertEquals(maxAll, ((ChannelSlots)TestUtil.getField(ncp, "slots")).leasedCount());
 
 
         while (!leasedChannels.isEmpty())
@@ -468,12 +466,11 @@ public class MultiConnectionTest
         TestCase.assertTrue(openedConnections.await(10, TimeUnit.SECONDS));
 
 
-        TestCase.assertEquals(5, ((List)TestUtil.getField(ncp, "immortalContexts")).size());
+        TestCase.assertEquals(5, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size());
 
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "ephemeralContexts")).size());
+        TestCase.assertEquals(0, ((IdleChannels)TestUtil.getField(ncp, "ephemeralContexts")).size());
 
-        TestCase.assertEquals(0, ((List)TestUtil.getField(ncp, "leasedContexts")).size());
-        TestCase.assertEquals(0, ((Set)TestUtil.getField(ncp, "leasedContextSet")).size());
+        TestCase.assertEquals(0, ((ChannelSlots)TestUtil.getField(ncp, "slots")).leasedCount());
 
         simpleServer.stop();
     }
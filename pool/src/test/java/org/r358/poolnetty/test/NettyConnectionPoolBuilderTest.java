@@ -2,11 +2,14 @@ package org.r358.poolnetty.test;
 
 import org.r358.poolnetty.common.*;
 import org.r358.poolnetty.common.concurrent.Completion;
+import org.r358.poolnetty.pool.IdleChannels;
 import org.r358.poolnetty.pool.NettyConnectionPool;
 import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
 import org.r358.poolnetty.test.simpleserver.util.TestUtil;
 import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.local.LocalEventLoopGroup;
 import junit.framework.TestCase;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -132,6 +135,20 @@ public class NettyConnectionPoolBuilderTest
         int reaperInterval = 1;
         nt.withReaperIntervalMillis(reaperInterval);
 
+        nt.withIdleStripes(3);
+        nt.withRecentChannelsPerThread(0);
+
+        LaneSelector ls = new LaneSelector()
+        {
+            @Override
+            public int laneFor(Object userObject)
+            {
+                return 1;
+            }
+        };
+        nt.withLaneWeights(4, 1);
+        nt.withLaneSelector(ls);
+        nt.withSharedScheduler();
 
         NettyConnectionPool ncp = nt.build();
 
@@ -149,8 +166,40 @@ public class NettyConnectionPoolBuilderTest
         TestCase.assertEquals(1, TestUtil.getField(ncp, "immortalCount"));
         TestCase.assertEquals(2, TestUtil.getField(ncp, "maxEphemeralCount"));
         TestCase.assertEquals(3, TestUtil.getField(ncp, "ephemeralLifespanMillis"));
+        TestCase.assertEquals(4, ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).getStripeCount()); // Rounded up.
+        TestCase.assertNull("Disabled.", TestUtil.getField(ncp, "recentChannels"));
+        TestCase.assertEquals(ls, TestUtil.getField(ncp, "laneSelector"));
+        TestCase.assertEquals(2, ncp.getLaneStats().size());
+        TestCase.assertEquals(4, ncp.getLaneStats().get(0).getWeight());
+        TestCase.assertSame(NettyConnectionPoolBuilder.sharedScheduler(), TestUtil.getField(ncp, "decoupler"));
 
 
     }
 
+
+    /**
+     * Shards on one event loop would all run on one thread.
+     */
+    @Test
+    public void testShardsRefuseEventLoopDecoupler()
+        throws Exception
+    {
+        EventLoopGroup elg = new LocalEventLoopGroup(1);
+        try
+        {
+            NettyConnectionPoolBuilder nt = new NettyConnectionPoolBuilder(1, 0, 3);
+            nt.withDecoupler(elg.next());
+            nt.buildSharded(2);
+            TestCase.fail("Event loop decoupler accepted.");
+        }
+        catch (IllegalStateException ex)
+        {
+            // Expected.
+        }
+        finally
+        {
+            elg.shutdownGracefully();
+        }
+    }
+
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test;
+
+import io.netty.channel.Channel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.PoolProvider;
+import org.r358.poolnetty.common.PreGrantLease;
+import org.r358.poolnetty.pool.AvailableChannel;
+import org.r358.poolnetty.pool.IdleChannels;
+import org.r358.poolnetty.pool.RecentChannels;
+
+/**
+ *
+ */
+@RunWith(JUnit4.class)
+public class RecentChannelsTest
+{
+    private static final PreGrantLease GRANT_ALL = new PreGrantLease()
+    {
+        @Override
+        public boolean continueToGrantLease(Channel channel, PoolProvider provider, Object userObject)
+        {
+            return true;
+        }
+    };
+
+
+    @Test
+    public void testOwnChannelReturned()
+        throws Exception
+    {
+        IdleChannels immortal = new IdleChannels(1, false);
+        IdleChannels ephemeral = new IdleChannels(1, false);
+        RecentChannels recent = new RecentChannels(2);
+
+        AvailableChannel a = leased(true);
+        AvailableChannel b = leased(true);
+
+        recent.yielded(a);
+        TestCase.assertNull("Not idle yet.", recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+
+        rearm(immortal, a);
+        rearm(immortal, b); // Newer than a, so a plain take would get b.
+
+        TestCase.assertSame(a, recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+        TestCase.assertTrue(a.isClaimed());
+        TestCase.assertEquals(1, immortal.size());
+        TestCase.assertNull("Only returned once.", recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+
+        //
+        // Yield it again, the idle channels must only hold one entry for it.
+        //
+        recent.yielded(a);
+        rearm(immortal, a);
+
+        int entries = 0;
+        for (AvailableChannel ac : immortal)
+        {
+            entries += ac == a ? 1 : 0;
+        }
+        TestCase.assertEquals(1, entries);
+        TestCase.assertSame(a, recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+    }
+
+
+    @Test
+    public void testStolenChannelSkipped()
+        throws Exception
+    {
+        IdleChannels immortal = new IdleChannels(1, false);
+        IdleChannels ephemeral = new IdleChannels(1, false);
+        RecentChannels recent = new RecentChannels(2);
+
+        AvailableChannel a = leased(true);
+        recent.yielded(a);
+        rearm(immortal, a);
+
+        TestCase.assertSame(a, immortal.take(GRANT_ALL, null, null)); // Another thread.
+        TestCase.assertNull(recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+
+        //
+        // Yielded by the other thread, this thread no longer has a claim on it.
+        //
+        rearm(immortal, a);
+        TestCase.assertNull(recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+    }
+
+
+    /**
+     * A recent ephemeral must not be preferred over idle immortals.
+     */
+    @Test
+    public void testEphemeralOnlyWithoutIdleImmortals()
+        throws Exception
+    {
+        IdleChannels immortal = new IdleChannels(1, false);
+        IdleChannels ephemeral = new IdleChannels(1, false);
+        RecentChannels recent = new RecentChannels(2);
+
+        AvailableChannel i = leased(true);
+        AvailableChannel e = leased(false);
+        rearm(immortal, i);
+        recent.yielded(e);
+        rearm(ephemeral, e);
+
+        TestCase.assertNull(recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+
+        TestCase.assertSame(i, immortal.take(GRANT_ALL, null, null));
+        TestCase.assertSame(e, recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+        TestCase.assertTrue(ephemeral.isEmpty());
+    }
+
+
+    @Test
+    public void testOldestForgotten()
+        throws Exception
+    {
+        IdleChannels immortal = new IdleChannels(1, false);
+        IdleChannels ephemeral = new IdleChannels(1, false);
+        RecentChannels recent = new RecentChannels(1);
+
+        AvailableChannel a = leased(true);
+        AvailableChannel b = leased(true);
+        recent.yielded(a);
+        recent.yielded(b);
+        rearm(immortal, a);
+        rearm(immortal, b);
+
+        TestCase.assertSame(b, recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+        TestCase.assertNull(recent.take(immortal, ephemeral, GRANT_ALL, null, null));
+    }
+
+
+    /**
+     * @return A channel that is out on lease.
+     */
+    private AvailableChannel leased(boolean immortal)
+    {
+        AvailableChannel ac = immortal ? new AvailableChannel(-1, null, -1, true) : new AvailableChannel(Long.MAX_VALUE, null, 1000, false);
+        TestCase.assertTrue(ac.claim());
+        return ac;
+    }
+
+    /**
+     * What the decoupler does with a yielded channel.
+     */
+    private void rearm(IdleChannels idle, AvailableChannel ac)
+    {
+        ac.rearm(ac.isImmortal() ? -1 : Long.MAX_VALUE);
+        idle.offer(ac);
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.pool.concurrent.SimulatedScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test the virtual time scheduler.
+ */
+@RunWith(JUnit4.class)
+public class SimulatedSchedulerTest
+{
+
+    private static Runnable record(final SimulatedScheduler sim, final List<String> log, final String name)
+    {
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                log.add(name + "@" + sim.millis());
+            }
+        };
+    }
+
+
+    @Test
+    public void testTasksRunInTimeOrder()
+        throws Exception
+    {
+        SimulatedScheduler sim = new SimulatedScheduler();
+        List<String> log = new ArrayList<>();
+
+        sim.schedule(record(sim, log, "late"), 2, TimeUnit.HOURS);
+        sim.schedule(record(sim, log, "early"), 1, TimeUnit.SECONDS);
+        sim.execute(record(sim, log, "now1"));
+        sim.execute(record(sim, log, "now2"));
+
+        TestCase.assertTrue("Nothing runs on its own.", log.isEmpty());
+
+        TestCase.assertEquals(2, sim.runPending());
+        TestCase.assertEquals("now1@0", log.get(0));
+        TestCase.assertEquals("now2@0", log.get(1));
+
+        sim.advance(3, TimeUnit.HOURS);
+        TestCase.assertEquals("early@1000", log.get(2));
+        TestCase.assertEquals("late@7200000", log.get(3));
+        TestCase.assertEquals(3 * 3600 * 1000L, sim.millis());
+        TestCase.assertEquals(-1, sim.nextTaskTime());
+    }
+
+
+    @Test
+    public void testPeriodicAndCancel()
+        throws Exception
+    {
+        SimulatedScheduler sim = new SimulatedScheduler();
+        List<String> log = new ArrayList<>();
+
+        ScheduledFuture<?> rate = sim.scheduleAtFixedRate(record(sim, log, "rate"), 10, 10, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> canceled = sim.schedule(record(sim, log, "canceled"), 15, TimeUnit.MILLISECONDS);
+        canceled.cancel(false);
+
+        TestCase.assertEquals(3, sim.advance(35, TimeUnit.MILLISECONDS));
+        TestCase.assertEquals("rate@10", log.get(0));
+        TestCase.assertEquals("rate@20", log.get(1));
+        TestCase.assertEquals("rate@30", log.get(2));
+
+        rate.cancel(false);
+        TestCase.assertEquals(0, sim.advance(1, TimeUnit.HOURS));
+        TestCase.assertEquals(3, log.size());
+    }
+
+
+    @Test
+    public void testTaskHandedOverByTask()
+        throws Exception
+    {
+        final SimulatedScheduler sim = new SimulatedScheduler(100);
+        final List<String> log = new ArrayList<>();
+
+        sim.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                log.add("timer@" + sim.millis());
+                sim.execute(record(sim, log, "followup"));
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        sim.advance(1, TimeUnit.SECONDS);
+        TestCase.assertEquals(2, log.size());
+        TestCase.assertEquals("timer@150", log.get(0));
+        TestCase.assertEquals("Runs at the time it was handed over.", "followup@150", log.get(1));
+    }
+
+
+    @Test
+    public void testHandOverFromOtherThread()
+        throws Exception
+    {
+        final SimulatedScheduler sim = new SimulatedScheduler();
+        final List<String> log = new ArrayList<>();
+
+        Thread other = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                sim.execute(record(sim, log, "other"));
+            }
+        };
+        other.start();
+        other.join();
+
+        TestCase.assertTrue(log.isEmpty());
+        sim.runPending();
+        TestCase.assertEquals("other@0", log.get(0));
+    }
+}
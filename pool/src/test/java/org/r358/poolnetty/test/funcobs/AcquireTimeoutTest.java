@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.Channel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.LeaseAcquireTimeoutException;
+import org.r358.poolnetty.pool.LeaseLanes;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+import org.r358.poolnetty.test.simpleserver.util.TestUtil;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test lease requests that give up waiting after their acquire timeout.
+ */
+@RunWith(JUnit4.class)
+public class AcquireTimeoutTest
+{
+
+    /**
+     * A blocking lease fails with LeaseAcquireTimeoutException and does not take the channel once it is yielded.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBlockingLeaseTimesOut()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool();
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            ncp.lease(10, TimeUnit.SECONDS, "second", 200, TimeUnit.MILLISECONDS);
+            TestCase.fail("Lease should have timed out.");
+        }
+        catch (LeaseAcquireTimeoutException ex)
+        {
+            // Expected.
+        }
+        long waited = System.currentTimeMillis() - start;
+        TestCase.assertTrue("Waited " + waited, waited >= 150 && waited < 5000);
+
+        FutureTask<Boolean> nobodyWaiting = new FutureTask<>(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                throws Exception
+            {
+                return ((LeaseLanes)TestUtil.getField(ncp, "leasesRequired")).isEmpty();
+            }
+        });
+        ncp.execute(nobodyWaiting);
+        TestCase.assertTrue(nobodyWaiting.get(5, TimeUnit.SECONDS));
+
+        first.yield();
+
+        LeasedChannel third = ncp.lease(10, TimeUnit.SECONDS, "third", 5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), third.getInner());
+        third.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A stage fails when it times out, one granted in time is unaffected once its deadline passes.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStageTimesOut()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool();
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+
+        CompletableFuture<LeasedChannel> late = ncp.leaseStage(10, TimeUnit.SECONDS, "late", 100, TimeUnit.MILLISECONDS).toCompletableFuture();
+        try
+        {
+            late.get(5, TimeUnit.SECONDS);
+            TestCase.fail("Stage should have timed out.");
+        }
+        catch (ExecutionException ex)
+        {
+            TestCase.assertTrue(ex.getCause() instanceof LeaseAcquireTimeoutException);
+        }
+
+        CompletableFuture<LeasedChannel> inTime = ncp.leaseStage(10, TimeUnit.SECONDS, "inTime", 300, TimeUnit.MILLISECONDS).toCompletableFuture();
+        first.yield();
+
+        LeasedChannel second = inTime.get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), second.getInner());
+
+        Thread.sleep(500); // Past the deadline of inTime.
+
+        TestCase.assertFalse(inTime.isCompletedExceptionally());
+        TestCase.assertNull("Still leased.", ncp.tryLease(10, TimeUnit.SECONDS, "try"));
+
+        second.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A zero acquire timeout fails straight away when nothing is idle, it does not open a connection.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testZeroTimeoutFailsFast()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final AtomicInteger opened = new AtomicInteger();
+
+        final NettyConnectionPool ncp = TestPools.builder(1, 1, 1000).build();
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void connectionCreated(PoolProvider provider, Channel channel, boolean immortal)
+            {
+                opened.incrementAndGet();
+            }
+        });
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first", 0, TimeUnit.MILLISECONDS);
+
+        try
+        {
+            ncp.lease(10, TimeUnit.SECONDS, "second", 0, TimeUnit.MILLISECONDS);
+            TestCase.fail("Lease should have failed.");
+        }
+        catch (LeaseAcquireTimeoutException ex)
+        {
+            // Expected.
+        }
+
+        Thread.sleep(200); // Long enough for a connection to open.
+        TestCase.assertEquals("Opened a connection.", 1, opened.get()); // Only the immortal.
+
+        first.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPool buildPool()
+    {
+        return TestPools.builder(1, 0, 1000).build();
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.Channel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test closes are issued without blocking the decoupler.
+ */
+@RunWith(JUnit4.class)
+public class AsyncCloseTest
+{
+
+    /**
+     * A burst of reaped ephemerals is closed, each close is reported once and the pool keeps leasing.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testReapBurst()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final AtomicInteger closed = new AtomicInteger();
+        NettyConnectionPool ncp = TestPools.builder(1, 50, 200).build();
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void connectionClosed(PoolProvider provider, Channel channel)
+            {
+                closed.incrementAndGet();
+            }
+        });
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        List<LeasedChannel> leased = ncp.leaseUpTo(51, 10, TimeUnit.SECONDS, "burst");
+        TestCase.assertEquals(51, leased.size());
+        for (LeasedChannel lc : leased)
+        {
+            lc.yield();
+        }
+
+        for (int t = 0; t < 250 && closed.get() < 50; t++)
+        {
+            Thread.sleep(20);
+        }
+        TestCase.assertEquals(50, closed.get());
+
+        LeasedChannel lc = ncp.lease(10, TimeUnit.SECONDS, "after", 1, TimeUnit.SECONDS);
+        lc.yield();
+
+        Thread.sleep(200);
+        TestCase.assertEquals("Close reported twice.", 50, closed.get());
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+}
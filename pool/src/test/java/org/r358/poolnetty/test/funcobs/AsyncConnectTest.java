@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleInboundHandler;
+import org.r358.poolnetty.test.simpleserver.SimpleOutboundHandler;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test a slow connect does not hold up the decoupler.
+ */
+@RunWith(JUnit4.class)
+public class AsyncConnectTest
+{
+    private final AtomicInteger failures = new AtomicInteger();
+
+    /**
+     * While an ephemeral connect is stalled the pool still yields and leases the immortal.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSlowConnectDoesNotStallPool()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(2000);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel holder = ncp.lease(10, TimeUnit.SECONDS, "holder");
+
+        //
+        // Needs the ephemeral connection, which takes two seconds to connect.
+        //
+        Future<LeasedChannel> slow = ncp.leaseAsync(10, TimeUnit.SECONDS, "slow");
+
+        long start = System.currentTimeMillis();
+        FutureTask<Boolean> probe = new FutureTask<>(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                throws Exception
+            {
+                return true;
+            }
+        });
+        Thread.sleep(100); // Let the connect get under way.
+        ncp.execute(probe);
+        TestCase.assertTrue(probe.get(5, TimeUnit.SECONDS));
+        TestCase.assertTrue("Decoupler was blocked by the connect.", System.currentTimeMillis() - start < 1000);
+
+        //
+        // The waiter gets the yielded immortal, the slow connection goes idle when it arrives.
+        //
+        holder.yield();
+        LeasedChannel got = slow.get(1, TimeUnit.SECONDS);
+        TestCase.assertSame(holder.getInner(), got.getInner());
+        got.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A refused connect is reported and the request waits for a yield instead.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRefusedConnectReported()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(0);
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+        LeasedChannel holder = ncp.lease(10, TimeUnit.SECONDS, "holder");
+
+        simpleServer.stop();
+        failures.set(0);
+
+        Future<LeasedChannel> waiting = ncp.leaseAsync(10, TimeUnit.SECONDS, "waiting");
+        for (int t = 0; t < 100 && failures.get() == 0; t++)
+        {
+            Thread.sleep(20);
+        }
+        TestCase.assertTrue("Refused connect not reported.", failures.get() > 0);
+        TestCase.assertFalse(waiting.isDone());
+
+        holder.yield();
+        waiting.get(5, TimeUnit.SECONDS).yield();
+        ncp.stop(true);
+    }
+
+
+    /**
+     * @param connectDelayMillis How long connects after the first are held back.
+     */
+    private NettyConnectionPool buildPool(final long connectDelayMillis)
+    {
+        NettyConnectionPoolBuilder ncb = TestPools.builder(1, 1, 10000);
+
+        final AtomicInteger connects = new AtomicInteger();
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+                final long delay = connects.getAndIncrement() == 0 ? 0 : connectDelayMillis;
+
+                return new ConnectionInfo(new InetSocketAddress(TestPools.HOST, TestPools.PORT), null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("slow", new ChannelOutboundHandlerAdapter()
+                        {
+                            @Override
+                            public void connect(final ChannelHandlerContext ctx, final SocketAddress remoteAddress, final SocketAddress localAddress, final ChannelPromise promise)
+                                throws Exception
+                            {
+                                ctx.executor().schedule(new Runnable()
+                                {
+                                    @Override
+                                    public void run()
+                                    {
+                                        ctx.connect(remoteAddress, localAddress, promise);
+                                    }
+                                }, delay, TimeUnit.MILLISECONDS);
+                            }
+                        });
+                        ch.pipeline().addLast("decode", new SimpleInboundHandler(10));
+                        ch.pipeline().addLast("encode", new SimpleOutboundHandler(10));
+                    }
+                });
+            }
+        });
+
+        ncb.withPoolExceptionHandler(new PoolExceptionHandler()
+        {
+            @Override
+            public void handleException(Throwable th)
+            {
+                failures.incrementAndGet();
+            }
+        });
+
+        return ncb.build();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Test leasing several channels in one request.
+ */
+@RunWith(JUnit4.class)
+public class BatchLeaseTest
+{
+
+    /**
+     * All or nothing and best effort batches against a pool of two immortals and up to three ephemerals.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBatchLease()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(2, 3);
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        //
+        // Both immortals plus two new ephemerals.
+        //
+        List<LeasedChannel> four = ncp.leaseMany(4, 10, TimeUnit.SECONDS, "four");
+        TestCase.assertEquals(4, four.size());
+        TestCase.assertEquals(4, distinct(four).size());
+
+        //
+        // Only one more connection can be opened.
+        //
+        List<LeasedChannel> upTo = ncp.leaseUpTo(3, 10, TimeUnit.SECONDS, "upTo");
+        TestCase.assertEquals(1, upTo.size());
+
+        TestCase.assertEquals(0, ncp.leaseUpTo(2, 10, TimeUnit.SECONDS, "none").size());
+
+        try
+        {
+            ncp.leaseMany(6, 10, TimeUnit.SECONDS, "six");
+            TestCase.fail("Batch larger than the pool must be rejected.");
+        }
+        catch (PoolProviderException pex)
+        {
+            // Expected.
+        }
+
+        //
+        // A batch of two waits until two channels are yielded.
+        //
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<List<LeasedChannel>> two = executor.submit(new Callable<List<LeasedChannel>>()
+        {
+            @Override
+            public List<LeasedChannel> call()
+                throws Exception
+            {
+                return ncp.leaseMany(2, 10, TimeUnit.SECONDS, "two");
+            }
+        });
+
+        Thread.sleep(250);
+        TestCase.assertFalse(two.isDone());
+
+        four.get(0).yield();
+        Thread.sleep(250);
+        TestCase.assertFalse("Batch granted with one channel.", two.isDone());
+
+        four.get(1).yield();
+        List<LeasedChannel> granted = two.get(5, TimeUnit.SECONDS);
+        TestCase.assertEquals(distinct(four.subList(0, 2)), distinct(granted));
+
+        executor.shutdown();
+
+        for (LeasedChannel lc : granted)
+        {
+            lc.yield();
+        }
+        for (LeasedChannel lc : four.subList(2, 4))
+        {
+            lc.yield();
+        }
+        upTo.get(0).yield();
+
+        ncp.stop(false);
+
+        simpleServer.stop();
+    }
+
+
+    private Set<Channel> distinct(List<LeasedChannel> leased)
+    {
+        Set<Channel> out = new HashSet<>();
+        for (LeasedChannel lc : leased)
+        {
+            out.add(lc.getInner());
+        }
+        return out;
+    }
+
+
+    private NettyConnectionPool buildPool(int immortalCount, int maxEphemeralCount)
+    {
+        return TestPools.builder(immortalCount, maxEphemeralCount, 10000).build();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.concurrent.Completion;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test connections opened for waiting requests go to the oldest waiter.
+ */
+@RunWith(JUnit4.class)
+public class ConnectForWaitersTest
+{
+
+    /**
+     * Connections that finish in reverse order still serve the waiters in the order they asked, and no more
+     * connections are opened than there are waiters.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFirstConnectionServesOldestWaiter()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final LinkedBlockingQueue<Completion> held = new LinkedBlockingQueue<>();
+        final CopyOnWriteArrayList<Object> granted = new CopyOnWriteArrayList<>();
+        final AtomicInteger opened = new AtomicInteger();
+
+        final NettyConnectionPool ncp = buildPool(held);
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void connectionCreated(PoolProvider provider, Channel channel, boolean immortal)
+            {
+                opened.incrementAndGet();
+            }
+
+            @Override
+            public void leaseGranted(PoolProvider provider, Channel channel, Object userObject)
+            {
+                granted.add(userObject);
+            }
+        });
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel holder = ncp.lease(10, TimeUnit.SECONDS, "holder");
+
+        List<Future<LeasedChannel>> waiting = new ArrayList<>();
+        for (int t = 0; t < 3; t++)
+        {
+            waiting.add(ncp.leaseAsync(10, TimeUnit.SECONDS, "w" + t));
+        }
+
+        //
+        // Hold the establish phase of the three connections then let them finish newest first.
+        //
+        List<Completion> completions = new ArrayList<>();
+        for (int t = 0; t < 3; t++)
+        {
+            Completion c = held.poll(5, TimeUnit.SECONDS);
+            TestCase.assertNotNull("Connection " + t + " not opened.", c);
+            completions.add(c);
+        }
+
+        for (int t = completions.size() - 1; t >= 0; t--)
+        {
+            completions.get(t).complete();
+        }
+
+        for (Future<LeasedChannel> f : waiting)
+        {
+            f.get(5, TimeUnit.SECONDS).yield();
+        }
+
+        TestCase.assertEquals(Arrays.asList("holder", "w0", "w1", "w2"), granted);
+        TestCase.assertNull("Surplus connection opened.", held.poll(200, TimeUnit.MILLISECONDS));
+        TestCase.assertEquals(4, opened.get()); // The immortal and one per waiter.
+
+        holder.yield();
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPool buildPool(final LinkedBlockingQueue<Completion> held)
+    {
+        NettyConnectionPoolBuilder ncb = TestPools.builder(1, 3, 10000);
+
+        //
+        // The immortal completes straight away, the others are held by the test.
+        //
+        ncb.withPostConnectEstablish(new PostConnectEstablish()
+        {
+            private boolean first = true;
+
+            @Override
+            public void establish(Channel channel, PoolProvider provider, Completion completion)
+            {
+                if (first)
+                {
+                    first = false;
+                    completion.complete();
+                }
+                else
+                {
+                    held.add(completion);
+                }
+            }
+        });
+
+        return ncb.build();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.Channel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.LeaseAcquireTimeoutException;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Test the default lease methods of PoolProvider on a provider that only implements the methods it always had.
+ */
+@RunWith(JUnit4.class)
+public class DefaultLeaseMethodsTest
+{
+
+    /**
+     * Stages, bounded and non waiting leases through the defaults.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDefaultLeases()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NettyConnectionPool ncp = TestPools.builder(1, 0, 1000).build();
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        PoolProvider provider = basic(ncp);
+
+        List<LeasedChannel> upTo = provider.leaseUpTo(2, 10, TimeUnit.SECONDS, "upTo");
+        TestCase.assertEquals(1, upTo.size());
+        upTo.get(0).yield();
+
+        LeasedChannel first = provider.leaseStage(10, TimeUnit.SECONDS, "first").toCompletableFuture().get(5, TimeUnit.SECONDS);
+        TestCase.assertNull("Nothing is idle.", provider.tryLease(10, TimeUnit.SECONDS, "try"));
+
+        try
+        {
+            provider.lease(10, TimeUnit.SECONDS, "second", 100, TimeUnit.MILLISECONDS);
+            TestCase.fail("Lease should have timed out.");
+        }
+        catch (LeaseAcquireTimeoutException ex)
+        {
+            // Expected.
+        }
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CompletionStage<LeasedChannel> third = provider.leaseStage(10, TimeUnit.SECONDS, "third", executor);
+        CompletableFuture<Thread> grantedOn = third.toCompletableFuture().thenApply(new Function<LeasedChannel, Thread>()
+        {
+            @Override
+            public Thread apply(LeasedChannel channel)
+            {
+                try
+                {
+                    channel.yield();
+                }
+                catch (PoolProviderException e)
+                {
+                    throw new CompletionException(e);
+                }
+                return Thread.currentThread();
+            }
+        });
+
+        first.yield();
+
+        Thread executorThread = executor.submit(new Callable<Thread>()
+        {
+            @Override
+            public Thread call()
+                throws Exception
+            {
+                return Thread.currentThread();
+            }
+        }).get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(executorThread, grantedOn.get(5, TimeUnit.SECONDS));
+
+        List<LeasedChannel> many = provider.leaseMany(1, 10, TimeUnit.SECONDS, "many");
+        TestCase.assertEquals(1, many.size());
+        TestCase.assertTrue("Nothing is idle.", provider.leaseUpTo(2, 10, TimeUnit.SECONDS, "upTo").isEmpty());
+        many.get(0).yield();
+
+        executor.shutdown();
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * Canceling a default stage cancels the request and the channel goes to the next one.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testDefaultStageCancel()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NettyConnectionPool ncp = TestPools.builder(1, 0, 1000).build();
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        PoolProvider provider = basic(ncp);
+
+        LeasedChannel first = provider.lease(10, TimeUnit.SECONDS, "first");
+
+        CompletableFuture<LeasedChannel> canceled = provider.leaseStage(10, TimeUnit.SECONDS, "canceled").toCompletableFuture();
+        TestCase.assertTrue(canceled.cancel(false));
+
+        first.yield();
+
+        LeasedChannel second = provider.lease(10, TimeUnit.SECONDS, "second", 5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), second.getInner());
+        second.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * @param pool The pool to pass calls on to.
+     * @return A provider with only the methods a provider had to implement before the defaults were added.
+     */
+    private PoolProvider basic(final NettyConnectionPool pool)
+    {
+        return new PoolProvider()
+        {
+            @Override
+            public Future<LeasedChannel> leaseAsync(int time, TimeUnit units, Object userObject)
+            {
+                return pool.leaseAsync(time, units, userObject);
+            }
+
+            @Override
+            public Future<LeasedChannel> leaseAsync(int time, TimeUnit units, Object userObject, LeaseListener listener)
+            {
+                return pool.leaseAsync(time, units, userObject, listener);
+            }
+
+            @Override
+            public LeasedChannel lease(int leaseTime, TimeUnit units, Object userObject)
+                throws PoolProviderException
+            {
+                return pool.lease(leaseTime, units, userObject);
+            }
+
+            @Override
+            public CompletionStage<LeasedChannel> leaseStage(int time, TimeUnit units, Object userObject, long acquireTimeout, TimeUnit acquireUnits)
+            {
+                return pool.leaseStage(time, units, userObject, acquireTimeout, acquireUnits);
+            }
+
+            @Override
+            public void yield(Channel channel)
+                throws PoolProviderException
+            {
+                pool.yield(channel);
+            }
+
+            @Override
+            public boolean start(long timeToWait, TimeUnit timeUnit)
+                throws Exception
+            {
+                return pool.start(timeToWait, timeUnit);
+            }
+
+            @Override
+            public void stop(boolean force)
+            {
+                pool.stop(force);
+            }
+
+            @Override
+            public void execute(Runnable runnable)
+            {
+                pool.execute(runnable);
+            }
+
+            @Override
+            public void addListener(PoolProviderListener listener)
+            {
+                pool.addListener(listener);
+            }
+
+            @Override
+            public void removeListener(PoolProviderListener listener)
+            {
+                pool.removeListener(listener);
+            }
+        };
+    }
+}
@@ -20,6 +20,7 @@
 package org.r358.poolnetty.test.funcobs;
 
 import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.IdleChannels;
 import org.r358.poolnetty.pool.NettyConnectionPool;
 import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
 import org.r358.poolnetty.test.simpleserver.*;
@@ -314,7 +315,7 @@ public class EphemeralTest
         }
 
 
-        List l = (List)TestUtil.getField(ncp, "ephemeralContexts");
+        IdleChannels l = (IdleChannels)TestUtil.getField(ncp, "ephemeralContexts");
 
         //
         // Should be 1 ephemeral contexts.
@@ -340,7 +341,7 @@ public class EphemeralTest
         }
 
 
-        l = (List)TestUtil.getField(ncp, "ephemeralContexts");
+        l = (IdleChannels)TestUtil.getField(ncp, "ephemeralContexts");
 
         //
         // Should be no ephemeral contexts.
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleInboundHandler;
+import org.r358.poolnetty.test.simpleserver.SimpleOutboundHandler;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test leasing with event loop affinity.
+ */
+@RunWith(JUnit4.class)
+public class EventLoopAffinityTest
+{
+
+    /**
+     * Connections should be spread evenly over the group and a lease from an event loop thread should get a
+     * channel on that loop.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLeaseFromEventLoop()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final EventLoopGroup elg = new NioEventLoopGroup(2);
+
+        NettyConnectionPoolBuilder ncb = new NettyConnectionPoolBuilder(4, 0, 1000);
+        ncb.withEventLoopAffinity(true);
+
+        ncb.withBootstrapProvider(new EventLoopBootstrapProvider()
+        {
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider, EventLoop eventLoop)
+            {
+                return createBootstrap(eventLoop);
+            }
+
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider)
+            {
+                return createBootstrap(elg);
+            }
+
+            private Bootstrap createBootstrap(EventLoopGroup group)
+            {
+                Bootstrap bs = new Bootstrap();
+                bs.group(group);
+                bs.channel(NioSocketChannel.class);
+                bs.option(ChannelOption.SO_KEEPALIVE, true);
+                bs.option(ChannelOption.AUTO_READ, true);
+                return bs;
+            }
+        });
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+
+                return new ConnectionInfo(new InetSocketAddress("127.0.0.1", 1887), null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("decode", new SimpleInboundHandler(10));
+                        ch.pipeline().addLast("encode", new SimpleOutboundHandler(10));
+                    }
+                });
+            }
+        });
+
+        final Map<EventLoop, AtomicInteger> perLoop = new ConcurrentHashMap<>();
+        final Semaphore yielded = new Semaphore(0);
+
+        final NettyConnectionPool ncp = ncb.build();
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void connectionCreated(PoolProvider provider, Channel channel, boolean immortal)
+            {
+                perLoop.putIfAbsent(channel.eventLoop(), new AtomicInteger());
+                perLoop.get(channel.eventLoop()).incrementAndGet();
+            }
+
+            @Override
+            public void leaseYield(PoolProvider provider, Channel channel, Object userObject)
+            {
+                yielded.release();
+            }
+        });
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        //
+        // Spread evenly.
+        //
+        TestCase.assertEquals(2, perLoop.size());
+        for (AtomicInteger count : perLoop.values())
+        {
+            TestCase.assertEquals(2, count.get());
+        }
+
+        //
+        // Lease from each loop, repeat so the yielded channels are also found.
+        //
+        for (int t = 0; t < 3; t++)
+        {
+            for (EventExecutor loop : elg)
+            {
+                boolean onCallersLoop = loop.submit(new Callable<Boolean>()
+                {
+                    @Override
+                    public Boolean call()
+                        throws Exception
+                    {
+                        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+                        LeasedChannel second = ncp.lease(10, TimeUnit.SECONDS, "second");
+                        boolean onLoop = first.eventLoop().inEventLoop() && second.eventLoop().inEventLoop();
+                        first.yield();
+                        second.yield();
+                        return onLoop;
+                    }
+                }).get(5, TimeUnit.SECONDS);
+
+                TestCase.assertTrue("Lease was not on the callers event loop.", onCallersLoop);
+                TestCase.assertTrue(yielded.tryAcquire(2, 5, TimeUnit.SECONDS));
+            }
+        }
+
+        ncp.stop(false);
+
+        simpleServer.stop();
+    }
+}
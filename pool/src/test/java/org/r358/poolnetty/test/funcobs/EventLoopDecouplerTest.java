@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.EventExecutor;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test a pool run on an event loop of the bootstrap's group.
+ */
+@RunWith(JUnit4.class)
+public class EventLoopDecouplerTest
+{
+
+    /**
+     * Leases, hand offs and stop work on the event loop, which is still running after the pool stops.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPoolOnEventLoop()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NioEventLoopGroup elg = new NioEventLoopGroup(1);
+        final EventExecutor loop = elg.next();
+        final NettyConnectionPool ncp = buildPool(elg, loop);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel holder = ncp.lease(10, TimeUnit.SECONDS, "holder");
+        TestCase.assertSame(loop, holder.getInner().eventLoop());
+
+        //
+        // Requested from the event loop, it waits for the yield.
+        //
+        Future<Future<LeasedChannel>> waiting = loop.submit(new Callable<Future<LeasedChannel>>()
+        {
+            @Override
+            public Future<LeasedChannel> call()
+                throws Exception
+            {
+                return ncp.leaseAsync(10, TimeUnit.SECONDS, "waiting");
+            }
+        });
+        Future<LeasedChannel> lease = waiting.get(5, TimeUnit.SECONDS);
+        TestCase.assertFalse(lease.isDone());
+
+        holder.yield();
+        LeasedChannel second = lease.get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(holder.getInner(), second.getInner());
+        second.yield();
+
+        ncp.stop(true);
+
+        TestCase.assertTrue("Event loop was shut down.", loop.submit(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                throws Exception
+            {
+                return true;
+            }
+        }).get(5, TimeUnit.SECONDS));
+
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A task handed over on the event loop while others are queued runs after them, not ahead of them.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testInlineKeepsQueueOrder()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NioEventLoopGroup elg = new NioEventLoopGroup(1);
+        final EventExecutor loop = elg.next();
+        final NettyConnectionPool ncp = buildPool(elg, loop);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        final List<String> order = new CopyOnWriteArrayList<>();
+
+        loop.submit(new Callable<Void>()
+        {
+            @Override
+            public Void call()
+                throws Exception
+            {
+                //
+                // Queued from another thread, it can not run while this loop task does.
+                //
+                Thread other = new Thread()
+                {
+                    @Override
+                    public void run()
+                    {
+                        ncp.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                order.add("queued");
+                            }
+                        });
+                    }
+                };
+                other.start();
+                other.join();
+
+                ncp.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        order.add("loop");
+                    }
+                });
+                return null;
+            }
+        }).get(5, TimeUnit.SECONDS);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (order.size() < 2 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        TestCase.assertEquals(Arrays.asList("queued", "loop"), order);
+
+        ncp.stop(true);
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A blocking lease on the pool's event loop that can not be granted straight away is refused.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBlockingLeaseOnLoopRefused()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NioEventLoopGroup elg = new NioEventLoopGroup(1);
+        final EventExecutor loop = elg.next();
+        final NettyConnectionPool ncp = buildPool(elg, loop);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel holder = ncp.lease(10, TimeUnit.SECONDS, "holder");
+
+        try
+        {
+            loop.submit(new Callable<LeasedChannel>()
+            {
+                @Override
+                public LeasedChannel call()
+                    throws Exception
+                {
+                    return ncp.lease(10, TimeUnit.SECONDS, "blocking");
+                }
+            }).get(5, TimeUnit.SECONDS);
+            TestCase.fail("Blocking lease on the loop was not refused.");
+        }
+        catch (ExecutionException ex)
+        {
+            TestCase.assertTrue(ex.getCause() instanceof PoolProviderException);
+        }
+
+        holder.yield();
+        ncp.stop(true);
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPool buildPool(final EventLoopGroup elg, EventExecutor loop)
+    {
+        return TestPools.builder(elg, 1, 0, 1000).withDecoupler(loop).build();
+    }
+}
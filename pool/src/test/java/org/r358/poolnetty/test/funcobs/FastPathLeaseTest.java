@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.Channel;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.ChannelSlots;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+import org.r358.poolnetty.test.simpleserver.util.TestUtil;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Test leases that are granted from idle channels without going through the decoupler.
+ */
+@RunWith(JUnit4.class)
+public class FastPathLeaseTest
+{
+
+    /**
+     * With the decoupler blocked an idle immortal channel must still be leased on the calling thread.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLeaseWhileDecouplerBlocked()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NettyConnectionPool ncp = buildPool(2);
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        //
+        // Block the decoupler.
+        //
+        final CountDownLatch decouplerBlocked = new CountDownLatch(1);
+        final CountDownLatch releaseDecoupler = new CountDownLatch(1);
+        ncp.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                decouplerBlocked.countDown();
+                try
+                {
+                    releaseDecoupler.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        TestCase.assertTrue(decouplerBlocked.await(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+        TestCase.assertNotNull(first);
+
+        Future<LeasedChannel> second = ncp.leaseAsync(10, TimeUnit.SECONDS, "second");
+        TestCase.assertTrue("Second lease should be granted immediately.", second.isDone());
+        TestCase.assertNotSame(first.getInner(), second.get().getInner());
+
+        //
+        // Both immortals are out, the next request must wait for the decoupler.
+        //
+        Future<LeasedChannel> third = ncp.leaseAsync(10, TimeUnit.SECONDS, "third");
+        TestCase.assertFalse(third.isDone());
+
+        releaseDecoupler.countDown();
+
+        first.yield();
+
+        LeasedChannel thirdChannel = third.get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), thirdChannel.getInner());
+
+        thirdChannel.yield();
+        second.get().yield();
+
+        ncp.stop(false);
+
+        simpleServer.stop();
+    }
+
+
+    /**
+     * tryLease answers straight away and never opens a connection.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTryLease()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1, 2);
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.tryLease(10, TimeUnit.SECONDS, "first");
+        TestCase.assertNotNull(first);
+
+        TestCase.assertNull("Nothing idle.", ncp.tryLease(10, TimeUnit.SECONDS, "second"));
+
+        //
+        // No ephemeral connection was started on behalf of the failed try.
+        //
+        FutureTask<Integer> opened = new FutureTask<>(new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws Exception
+            {
+                return ((ChannelSlots)TestUtil.getField(ncp, "slots")).ephemeralCount();
+            }
+        });
+        ncp.execute(opened);
+        TestCase.assertEquals(0, (int)opened.get(5, TimeUnit.SECONDS));
+
+        first.yield();
+
+        LeasedChannel again = null;
+        for (int t = 0; t < 50 && again == null; t++)
+        {
+            again = ncp.tryLease(10, TimeUnit.SECONDS, "again"); // Yield is processed on the decoupler.
+            if (again == null)
+            {
+                Thread.sleep(10);
+            }
+        }
+        TestCase.assertNotNull(again);
+        TestCase.assertSame(first.getInner(), again.getInner());
+
+        again.yield();
+
+        ncp.stop(false);
+
+        simpleServer.stop();
+    }
+
+
+    /**
+     * Yielding a lease a second time must not end the lease the channel has been granted under since.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStaleYield()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1);
+
+        final CountDownLatch staleYield = new CountDownLatch(1);
+        final AtomicReference<Throwable> yieldException = new AtomicReference<>();
+
+        TestUtil.setField(ncp, "poolExceptionHandler", new PoolExceptionHandler()
+        {
+            @Override
+            public void handleException(Throwable th)
+            {
+                yieldException.set(th);
+                staleYield.countDown();
+            }
+        });
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+        first.yield();
+
+        LeasedChannel second = ncp.lease(10, TimeUnit.SECONDS, "second");
+        TestCase.assertSame(first.getInner(), second.getInner());
+        TestCase.assertFalse(first.getLeaseID() == second.getLeaseID());
+
+        first.yield(); // Stale.
+
+        TestCase.assertTrue(staleYield.await(5, TimeUnit.SECONDS));
+        TestCase.assertTrue(yieldException.get() instanceof PoolProviderException);
+
+        //
+        // The second lease still holds the only channel.
+        //
+        TestCase.assertNull(ncp.tryLease(10, TimeUnit.SECONDS, "third"));
+
+        second.yield();
+
+        LeasedChannel third = ncp.lease(10, TimeUnit.SECONDS, "third");
+        TestCase.assertSame(second.getInner(), third.getInner());
+        third.yield();
+
+        ncp.stop(false);
+
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A stop() between the fast path checking the pool is open and recording the lease must not leave the caller
+     * holding a channel of a pool that has shut down.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStopWhileClaiming()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        NettyConnectionPoolBuilder ncb = TestPools.builder(1, 0, 1000);
+        ncb.withPreGrantLease(new PreGrantLease()
+        {
+            @Override
+            public boolean continueToGrantLease(Channel channel, PoolProvider provider, Object userObject)
+            {
+                if ("stopper".equals(userObject))
+                {
+                    provider.stop(false); // Runs after the fast path check, before the lease is recorded.
+                }
+                return true;
+            }
+        });
+
+        final NettyConnectionPool ncp = ncb.build();
+
+        final CountDownLatch stopped = new CountDownLatch(1);
+        final AtomicReference<Channel> created = new AtomicReference<>();
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void connectionCreated(PoolProvider provider, Channel channel, boolean immortal)
+            {
+                created.set(channel);
+            }
+
+            @Override
+            public void stopped(PoolProvider provider)
+            {
+                stopped.countDown();
+            }
+        });
+
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        TestCase.assertNull("Leased from a stopping pool.", ncp.tryLease(10, TimeUnit.SECONDS, "stopper"));
+        TestCase.assertTrue("Pool did not stop.", stopped.await(5, TimeUnit.SECONDS));
+
+        created.get().closeFuture().await(5, TimeUnit.SECONDS);
+        TestCase.assertFalse("Channel left open.", created.get().isOpen());
+
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPool buildPool(int immortalCount)
+    {
+        return buildPool(immortalCount, 0);
+    }
+
+    private NettyConnectionPool buildPool(int immortalCount, int maxEphemeralCount)
+    {
+        return TestPools.builder(immortalCount, maxEphemeralCount, 1000).build();
+    }
+}
@@ -204,8 +204,8 @@ public class LeaseExpirationTest
             @Override
             public void handleException(Throwable th)
             {
-                gotExceptionWhenTryingToYield.countDown();
                 yieldException.set((PoolProviderException)th);
+                gotExceptionWhenTryingToYield.countDown();
             }
         });
 
@@ -395,8 +395,8 @@ public class LeaseExpirationTest
             @Override
             public void handleException(Throwable th)
             {
-                gotExceptionWhenTryingToYield.countDown();
                 yieldException.set((PoolProviderException)th);
+                gotExceptionWhenTryingToYield.countDown();
             }
         });
 
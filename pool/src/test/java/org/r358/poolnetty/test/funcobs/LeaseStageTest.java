@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Test leases taken as a CompletionStage.
+ */
+@RunWith(JUnit4.class)
+public class LeaseStageTest
+{
+
+    /**
+     * The stage completes on the given executor and a chain can yield the channel without blocking.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testStageCompletesOnExecutor()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                return new Thread(r, "stage-executor");
+            }
+        });
+
+        //
+        // Hold completion back until the chain is attached, otherwise it would run on this thread.
+        //
+        final CountDownLatch attached = new CountDownLatch(1);
+        Executor gated = new Executor()
+        {
+            @Override
+            public void execute(final Runnable command)
+            {
+                executor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        try
+                        {
+                            attached.await(5, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        command.run();
+                    }
+                });
+            }
+        };
+
+        final AtomicReference<String> completedOn = new AtomicReference<>();
+
+        CompletableFuture<Channel> yielded = ncp.leaseStage(10, TimeUnit.SECONDS, "stage", gated).thenApply(new Function<LeasedChannel, Channel>()
+        {
+            @Override
+            public Channel apply(LeasedChannel leasedChannel)
+            {
+                completedOn.set(Thread.currentThread().getName());
+                try
+                {
+                    leasedChannel.yield();
+                }
+                catch (PoolProviderException e)
+                {
+                    throw new CompletionException(e);
+                }
+                return leasedChannel.getInner();
+            }
+        }).toCompletableFuture();
+
+        attached.countDown();
+
+        Channel ch = yielded.get(5, TimeUnit.SECONDS);
+        TestCase.assertEquals("stage-executor", completedOn.get());
+
+        //
+        // Yielded, so it can be leased again.
+        //
+        LeasedChannel again = ncp.leaseStage(10, TimeUnit.SECONDS, "again").toCompletableFuture().get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(ch, again.getInner());
+        again.yield();
+
+        executor.shutdown();
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A waiting stage that is canceled must not take the next yielded channel.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testCancelWaitingStage()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+
+        CompletableFuture<LeasedChannel> waiting = ncp.leaseStage(10, TimeUnit.SECONDS, "waiting").toCompletableFuture();
+        TestCase.assertFalse(waiting.isDone());
+        TestCase.assertTrue(waiting.cancel(true));
+        TestCase.assertTrue(waiting.isCancelled());
+
+        first.yield();
+
+        LeasedChannel next = ncp.leaseStage(10, TimeUnit.SECONDS, "next").toCompletableFuture().get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), next.getInner());
+
+        next.yield();
+
+        CompletableFuture<LeasedChannel> granted = ncp.leaseStage(10, TimeUnit.SECONDS, "granted").toCompletableFuture();
+        granted.get(5, TimeUnit.SECONDS);
+        try
+        {
+            granted.cancel(true);
+            TestCase.fail("Granted lease can not be canceled.");
+        }
+        catch (IllegalStateException isex)
+        {
+            // Expected.
+        }
+        granted.get().yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPool buildPool(int immortalCount)
+    {
+        return TestPools.builder(immortalCount, 0, 1000).build();
+    }
+}
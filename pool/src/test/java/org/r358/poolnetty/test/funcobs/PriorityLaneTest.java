@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.LaneStats;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Test waiting lease requests are served by lane.
+ */
+@RunWith(JUnit4.class)
+public class PriorityLaneTest
+{
+
+    /**
+     * A high lane request that arrives later is served before a low lane one, the stats follow each lane.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHighLaneServedFirst()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool();
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+
+        Future<LeasedChannel> low = ncp.leaseAsync(10, TimeUnit.SECONDS, "low");
+        awaitDepth(ncp, 1, 1);
+
+        Future<LeasedChannel> high = ncp.leaseAsync(10, TimeUnit.SECONDS, "high");
+        awaitDepth(ncp, 0, 1);
+
+        first.yield();
+
+        LeasedChannel highChannel = high.get(5, TimeUnit.SECONDS);
+        TestCase.assertFalse(low.isDone());
+
+        highChannel.yield();
+
+        low.get(5, TimeUnit.SECONDS).yield();
+
+        List<LaneStats> stats = ncp.getLaneStats();
+        TestCase.assertEquals(1, stats.get(0).getGranted());
+        TestCase.assertEquals(2, stats.get(1).getGranted()); // first and low.
+        TestCase.assertEquals(0, stats.get(0).getDepth());
+        TestCase.assertEquals(0, stats.get(1).getDepth());
+        TestCase.assertTrue(stats.get(1).getWaitMillis() > 0);
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    private void awaitDepth(NettyConnectionPool ncp, int lane, int depth)
+        throws Exception
+    {
+        for (int t = 0; t < 500; t++)
+        {
+            if (ncp.getLaneStats().get(lane).getDepth() == depth)
+            {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        TestCase.fail("Lane " + lane + " did not reach depth " + depth);
+    }
+
+
+    private NettyConnectionPool buildPool()
+    {
+        NettyConnectionPoolBuilder ncb = TestPools.builder(1, 0, 1000);
+
+        ncb.withLaneWeights(2, 1);
+        ncb.withLaneSelector(new LaneSelector()
+        {
+            @Override
+            public int laneFor(Object userObject)
+            {
+                return "high".equals(userObject) ? 0 : 1;
+            }
+        });
+
+        return ncb.build();
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.exceptions.LeaseAcquireTimeoutException;
+import org.r358.poolnetty.common.exceptions.PoolProviderException;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.pool.ShardedConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test routing, borrowing and yielding across the shards of a sharded pool.
+ */
+@RunWith(JUnit4.class)
+public class ShardedPoolTest
+{
+
+    /**
+     * Everything is routed to shard 0, once it has nothing idle the lease is borrowed from shard 1 and goes back there.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testBorrowFromSibling()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+        final EventLoopGroup elg = new NioEventLoopGroup();
+
+        NettyConnectionPoolBuilder ncb = builder(elg, 0);
+        ncb.withShardSelector(new ShardSelector()
+        {
+            @Override
+            public int shardFor(Object userObject, int shardCount)
+            {
+                return 0;
+            }
+        });
+
+        ShardedConnectionPool scp = ncb.buildSharded(2);
+
+        final CopyOnWriteArrayList<PoolProvider> granted = new CopyOnWriteArrayList<>();
+        final CopyOnWriteArrayList<PoolProvider> yielded = new CopyOnWriteArrayList<>();
+        scp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void leaseGranted(PoolProvider provider, Channel channel, Object userObject)
+            {
+                granted.add(provider);
+            }
+
+            @Override
+            public void leaseYield(PoolProvider provider, Channel channel, Object userObject)
+            {
+                yielded.add(provider);
+            }
+        });
+
+        TestCase.assertTrue("Immortals not opened.", scp.start(5, TimeUnit.SECONDS));
+
+        NettyConnectionPool home = scp.getShards().get(0);
+        NettyConnectionPool sibling = scp.getShards().get(1);
+
+        LeasedChannel a = scp.lease(10, TimeUnit.SECONDS, "a");
+        LeasedChannel b = scp.lease(10, TimeUnit.SECONDS, "b");
+        TestCase.assertNotSame(a.getInner(), b.getInner());
+
+        TestCase.assertEquals(2, granted.size());
+        TestCase.assertSame(home, granted.get(0));
+        TestCase.assertSame(sibling, granted.get(1));
+
+        //
+        // Nothing idle anywhere, the request waits on the home shard.
+        //
+        try
+        {
+            scp.lease(10, TimeUnit.SECONDS, "c", 200, TimeUnit.MILLISECONDS);
+            TestCase.fail("Lease granted with nothing idle.");
+        }
+        catch (LeaseAcquireTimeoutException ex)
+        {
+            // Expected.
+        }
+
+        //
+        // The raw channel goes back to the shard that opened it.
+        //
+        scp.yield(b.getInner());
+        a.yield();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (yielded.size() < 2 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        TestCase.assertEquals(2, yielded.size());
+        TestCase.assertTrue(yielded.contains(home));
+        TestCase.assertTrue(yielded.contains(sibling));
+
+        scp.stop(true);
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A tagged lease finds a tagged channel on whichever shard holds it, a foreign channel can not be yielded.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTaggedAndForeign()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+        final EventLoopGroup elg = new NioEventLoopGroup();
+
+        ShardedConnectionPool scp = builder(elg, 1).buildSharded(4);
+        TestCase.assertTrue("Immortals not opened.", scp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel chan = scp.lease(10, TimeUnit.SECONDS, "user");
+        scp.tag(chan, "alice");
+        TestCase.assertEquals("alice", scp.getTag(chan));
+        chan.yield();
+
+        //
+        // Wait for the yield to land on the idle list of its shard.
+        //
+        LeasedChannel same = null;
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline)
+        {
+            same = scp.lease("alice", 10, TimeUnit.SECONDS, "user");
+            if (same.getInner() == chan.getInner())
+            {
+                break;
+            }
+            same.yield();
+            Thread.sleep(10);
+        }
+        TestCase.assertSame(chan.getInner(), same.getInner());
+        same.yield();
+
+        try
+        {
+            scp.yield(new io.netty.channel.embedded.EmbeddedChannel(new ChannelInboundHandlerAdapter()));
+            TestCase.fail("Foreign channel yielded.");
+        }
+        catch (PoolProviderException ex)
+        {
+            // Expected.
+        }
+
+        scp.stop(true);
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPoolBuilder builder(final EventLoopGroup elg, int maxEphemeral)
+    {
+        return TestPools.builder(elg, 1, maxEphemeral, 60000);
+    }
+}
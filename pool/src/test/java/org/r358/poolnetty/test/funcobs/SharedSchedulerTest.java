@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test many pools on one scheduler.
+ */
+@RunWith(JUnit4.class)
+public class SharedSchedulerTest
+{
+
+    /**
+     * Twenty pools on a two thread scheduler, each pool's tasks never overlap and stopping them leaves the scheduler
+     * running with none of their timers.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPoolsShareScheduler()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final EventLoopGroup elg = new NioEventLoopGroup();
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(2);
+        scheduler.setRemoveOnCancelPolicy(true);
+
+        List<NettyConnectionPool> pools = new ArrayList<>();
+        for (int t = 0; t < 20; t++)
+        {
+            NettyConnectionPool ncp = buildPool(elg, scheduler);
+            TestCase.assertTrue("Immortal not opened.", ncp.start(5, TimeUnit.SECONDS));
+            pools.add(ncp);
+        }
+
+        //
+        // Every pool leases over its ephemeral slot and the reaper closes it on the shared scheduler.
+        //
+        for (NettyConnectionPool ncp : pools)
+        {
+            LeasedChannel a = ncp.lease(10, TimeUnit.SECONDS, "a");
+            LeasedChannel b = ncp.lease(10, TimeUnit.SECONDS, "b");
+            TestCase.assertNotSame(a.getInner(), b.getInner());
+            a.yield();
+            b.yield();
+        }
+
+        //
+        // Tasks of one pool handed over from several threads at once run one at a time.
+        //
+        final NettyConnectionPool ncp = pools.get(0);
+        final AtomicBoolean inside = new AtomicBoolean();
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(4 * 500);
+
+        List<Thread> producers = new ArrayList<>();
+        for (int t = 0; t < 4; t++)
+        {
+            Thread th = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 500; i++)
+                    {
+                        ncp.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                if (!inside.compareAndSet(false, true))
+                                {
+                                    overlaps.incrementAndGet();
+                                }
+                                Thread.yield();
+                                inside.set(false);
+                                ran.countDown();
+                            }
+                        });
+                    }
+                }
+            };
+            producers.add(th);
+            th.start();
+        }
+
+        TestCase.assertTrue("Tasks did not run.", ran.await(10, TimeUnit.SECONDS));
+        TestCase.assertEquals(0, overlaps.get());
+
+        for (NettyConnectionPool p : pools)
+        {
+            p.stop(true);
+        }
+
+        //
+        // The reapers of every pool are canceled and the scheduler is still running.
+        //
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!scheduler.getQueue().isEmpty() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        TestCase.assertTrue("Timers left behind.", scheduler.getQueue().isEmpty());
+        TestCase.assertFalse(scheduler.isShutdown());
+
+        scheduler.shutdown();
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+
+
+    private NettyConnectionPool buildPool(final EventLoopGroup elg, ScheduledThreadPoolExecutor scheduler)
+    {
+        return TestPools.builder(elg, 1, 1, 100).withScheduler(scheduler).build();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.pool.concurrent.SimulatedScheduler;
+import org.r358.poolnetty.pool.reaper.FullPassSimpleLeaseReaper;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test lease expiry and ephemeral lifespans in virtual time, an hour of pool time passes in well under a second.
+ */
+@RunWith(JUnit4.class)
+public class SimulatedTimeTest
+{
+
+    /**
+     * Run the simulation until the condition holds, connects and closes still happen in real time on the event loop.
+     */
+    private interface Condition
+    {
+        boolean met();
+    }
+
+    private static void driveUntil(SimulatedScheduler sim, Condition condition)
+        throws Exception
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.met())
+        {
+            TestCase.assertTrue("Condition not met.", System.currentTimeMillis() < deadline);
+            if (sim.runPending() == 0)
+            {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+
+    @Test
+    public void testExpiryAndLifespanInVirtualTime()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final EventLoopGroup elg = new NioEventLoopGroup();
+        final SimulatedScheduler sim = new SimulatedScheduler();
+
+        NettyConnectionPoolBuilder ncb = TestPools.builder(elg, 0, 1, (int)TimeUnit.HOURS.toMillis(1));
+        ncb.withReaperIntervalMillis((int)TimeUnit.MINUTES.toMillis(1));
+        ncb.withLeaseExpiryHarvester(new FullPassSimpleLeaseReaper());
+        ncb.withScheduler(sim);
+        ncb.withTicker(sim);
+
+        NettyConnectionPool ncp = ncb.build();
+
+        final AtomicInteger expired = new AtomicInteger();
+        final AtomicInteger closed = new AtomicInteger();
+        ncp.addListener(new PoolProviderListenerAdapter()
+        {
+            @Override
+            public void leaseExpired(PoolProvider provider, Channel channel, Object userObject)
+            {
+                expired.incrementAndGet();
+            }
+
+            @Override
+            public void connectionClosed(PoolProvider provider, Channel channel)
+            {
+                closed.incrementAndGet();
+            }
+        });
+
+        long realStart = System.currentTimeMillis();
+
+        TestCase.assertTrue(ncp.start(0, TimeUnit.MILLISECONDS));
+
+        //
+        // A ten minute lease expires between nine and eleven minutes.
+        //
+        final Future<LeasedChannel> first = ncp.leaseAsync(10, TimeUnit.MINUTES, "first");
+        driveUntil(sim, new Condition()
+        {
+            @Override
+            public boolean met()
+            {
+                return first.isDone();
+            }
+        });
+        first.get();
+
+        sim.advance(9, TimeUnit.MINUTES);
+        TestCase.assertEquals(0, expired.get());
+
+        sim.advance(2, TimeUnit.MINUTES);
+        TestCase.assertEquals(1, expired.get());
+        driveUntil(sim, new Condition()
+        {
+            @Override
+            public boolean met()
+            {
+                return closed.get() == 1;
+            }
+        });
+
+        //
+        // An idle ephemeral lives for an hour.
+        //
+        final Future<LeasedChannel> second = ncp.leaseAsync(10, TimeUnit.MINUTES, "second");
+        driveUntil(sim, new Condition()
+        {
+            @Override
+            public boolean met()
+            {
+                return second.isDone();
+            }
+        });
+        second.get().yield();
+        sim.runPending();
+
+        sim.advance(59, TimeUnit.MINUTES);
+        TestCase.assertEquals(1, closed.get());
+
+        sim.advance(7, TimeUnit.MINUTES); // Past the lifespan and the next sweep.
+        driveUntil(sim, new Condition()
+        {
+            @Override
+            public boolean met()
+            {
+                return closed.get() == 2;
+            }
+        });
+
+        TestCase.assertTrue("Over an hour of pool time took too long.", System.currentTimeMillis() - realStart < 5000);
+
+        ncp.stop(true);
+        sim.runPending();
+        elg.shutdownGracefully();
+        simpleServer.stop();
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.common.concurrent.Completion;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+import org.r358.poolnetty.test.simpleserver.util.TestUtil;
+
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Test leasing channels by tag.
+ */
+@RunWith(JUnit4.class)
+public class TaggedLeaseTest
+{
+
+    /**
+     * A tagged lease gets the channel with that tag back, a tag nobody has gets a new connection carrying the tag.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testLeaseByTag()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final CopyOnWriteArrayList<Object> establishedTags = new CopyOnWriteArrayList<>();
+        final NettyConnectionPool ncp = buildPool(1, 2, establishedTags);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel alice = ncp.lease(10, TimeUnit.SECONDS, "plain");
+        ncp.tag(alice, "alice");
+        TestCase.assertEquals("alice", ncp.getTag(alice.getInner()));
+        alice.yield();
+        drain(ncp);
+
+        LeasedChannel again = ncp.lease("alice", 10, TimeUnit.SECONDS, "tagged");
+        TestCase.assertSame(alice.getInner(), again.getInner());
+
+        LeasedChannel bob = ncp.lease("bob", 10, TimeUnit.SECONDS, "tagged");
+        TestCase.assertNotSame(alice.getInner(), bob.getInner());
+        TestCase.assertEquals("bob", ncp.getTag(bob));
+        TestCase.assertTrue(establishedTags.contains("bob"));
+
+        again.yield();
+        bob.yield();
+        drain(ncp);
+
+        LeasedChannel bobAgain = ncp.lease("bob", 10, TimeUnit.SECONDS, "tagged");
+        TestCase.assertSame(bob.getInner(), bobAgain.getInner());
+        bobAgain.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * Untagged leases fall back to tagged channels when no untagged channel is idle.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testUntaggedFallsBackToTagged()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1, 0, new CopyOnWriteArrayList<>());
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "plain");
+        ncp.tag(first, "alice");
+        first.yield();
+
+        LeasedChannel second = ncp.lease(10, TimeUnit.SECONDS, "plain");
+        TestCase.assertSame(first.getInner(), second.getInner());
+        TestCase.assertEquals("alice", ncp.getTag(second));
+
+        //
+        // Clearing the tag puts it back with the untagged channels.
+        //
+        ncp.tag(second, null);
+        second.yield();
+
+        LeasedChannel third = ncp.lease(10, TimeUnit.SECONDS, "plain");
+        TestCase.assertSame(first.getInner(), third.getInner());
+        TestCase.assertNull(ncp.getTag(third));
+        third.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A request whose connection is still being opened is not held up by a later request for the same tag.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testSameTagWhileConnecting()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final ScheduledExecutorService slowEstablish = Executors.newSingleThreadScheduledExecutor();
+        NettyConnectionPoolBuilder ncb = TestPools.builder(0, 1, 10000);
+        ncb.withPostConnectEstablish(new PostConnectEstablish()
+        {
+            @Override
+            public void establish(Channel channel, PoolProvider provider, final Completion completion)
+            {
+                slowEstablish.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        completion.complete();
+                    }
+                }, 300, TimeUnit.MILLISECONDS);
+            }
+        });
+
+        final NettyConnectionPool ncp = ncb.build();
+        TestCase.assertTrue(ncp.start(5, TimeUnit.SECONDS));
+
+        ExecutorService leasing = Executors.newFixedThreadPool(2);
+        Callable<LeasedChannel> leaseT = new Callable<LeasedChannel>()
+        {
+            @Override
+            public LeasedChannel call()
+                throws Exception
+            {
+                return ncp.lease("t", 10, TimeUnit.SECONDS, "tagged");
+            }
+        };
+
+        Future<LeasedChannel> first = leasing.submit(leaseT);
+        Thread.sleep(50);
+        Future<LeasedChannel> second = leasing.submit(leaseT);
+
+        LeasedChannel a = first.get(5, TimeUnit.SECONDS);
+        a.yield();
+        LeasedChannel b = second.get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(a.getInner(), b.getInner());
+        b.yield();
+
+        leasing.shutdown();
+        slowEstablish.shutdown();
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A tag is only kept with the idle channels while it has an idle channel.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTagDroppedWhenLastChannelLeaves()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1, 2, new CopyOnWriteArrayList<>());
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        Map<?, ?> tagged = (Map<?, ?>)TestUtil.getField(ncp, "taggedContexts");
+
+        LeasedChannel alice = ncp.lease("alice", 10, TimeUnit.SECONDS, "tagged");
+        alice.yield();
+        drain(ncp);
+        TestCase.assertTrue(tagged.containsKey("alice"));
+
+        LeasedChannel again = ncp.lease("alice", 10, TimeUnit.SECONDS, "tagged");
+        TestCase.assertSame(alice.getInner(), again.getInner());
+        drain(ncp);
+        TestCase.assertFalse("Tag kept without idle channels.", tagged.containsKey("alice"));
+
+        again.yield();
+        drain(ncp);
+        TestCase.assertTrue(tagged.containsKey("alice"));
+
+        //
+        // Closing the last idle channel of a tag drops it as well.
+        //
+        again.getInner().close().sync();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (tagged.containsKey("alice") && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+            drain(ncp);
+        }
+        TestCase.assertFalse("Tag kept after its channel closed.", tagged.containsKey("alice"));
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A tagged request that can not be served does not hold up an untagged request made after it.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testTaggedWaiterDoesNotBlockUntagged()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(1, 0, new CopyOnWriteArrayList<>());
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "plain");
+
+        //
+        // No channel has the tag and no ephemeral can be opened for it, so this waits for good.
+        //
+        Thread tagged = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    ncp.lease("A", 10, TimeUnit.SECONDS, "tagged");
+                }
+                catch (Exception ex)
+                {
+                    // Interrupted at the end of the test.
+                }
+            }
+        };
+        tagged.setDaemon(true);
+        tagged.start();
+
+        while (tagged.getState() != Thread.State.WAITING && tagged.getState() != Thread.State.TIMED_WAITING)
+        {
+            Thread.sleep(10);
+        }
+        drain(ncp);
+
+        Future<LeasedChannel> untagged = ncp.leaseAsync(10, TimeUnit.SECONDS, "plain");
+        drain(ncp);
+
+        first.yield();
+
+        LeasedChannel second = untagged.get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), second.getInner());
+        second.yield();
+
+        tagged.interrupt();
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * Wait for the tasks already on the decoupler, yields included, to run.
+     */
+    private void drain(NettyConnectionPool ncp)
+        throws Exception
+    {
+        FutureTask<Void> barrier = new FutureTask<>(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+
+            }
+        }, null);
+        ncp.execute(barrier);
+        barrier.get(5, TimeUnit.SECONDS);
+    }
+
+
+    private NettyConnectionPool buildPool(int immortal, int maxEphemeral, final CopyOnWriteArrayList<Object> establishedTags)
+    {
+        NettyConnectionPoolBuilder ncb = TestPools.builder(immortal, maxEphemeral, 10000);
+
+        ncb.withPostConnectEstablish(new PostConnectEstablish()
+        {
+            @Override
+            public void establish(Channel channel, PoolProvider provider, Completion completion)
+            {
+                Object tag = provider.getTag(channel);
+                if (tag != null)
+                {
+                    establishedTags.add(tag);
+                }
+                completion.complete();
+            }
+        });
+
+        return ncb.build();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2014 R358 https://github.com/R358
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy of this software and
+ * associated documentation files (the "Software"), to deal in the Software without restriction,
+ * including without limitation the rights to use, copy, modify, merge, publish, distribute, sublicense,
+ * and/or sell copies of the Software, and to permit persons to whom the Software is furnished to do so,
+ * subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all copies or substantial
+ * portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR IMPLIED, INCLUDING BUT NOT
+ * LIMITED TO THE WARRANTIES OF MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION WITH THE
+ * SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package org.r358.poolnetty.test.funcobs;
+
+import io.netty.channel.*;
+import junit.framework.TestCase;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.r358.poolnetty.common.*;
+import org.r358.poolnetty.pool.IdleChannels;
+import org.r358.poolnetty.pool.LeaseLanes;
+import org.r358.poolnetty.pool.NettyConnectionPool;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.util.TestPools;
+import org.r358.poolnetty.test.simpleserver.util.TestUtil;
+
+import java.util.concurrent.*;
+
+/**
+ * Test yielded channels are handed straight to waiting requests.
+ */
+@RunWith(JUnit4.class)
+public class YieldHandoffTest
+{
+
+    /**
+     * The waiter is granted the channel in the same decoupler task as the yield.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testHandoffToWaiter()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(null);
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+
+        final Future<LeasedChannel> waiting = ncp.leaseAsync(10, TimeUnit.SECONDS, "waiting");
+        awaitWaiting(ncp);
+
+        first.yield();
+
+        //
+        // Runs on the decoupler straight after the yield.
+        //
+        FutureTask<Boolean> grantedWithYield = new FutureTask<>(new Callable<Boolean>()
+        {
+            @Override
+            public Boolean call()
+                throws Exception
+            {
+                return waiting.isDone() && ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).isEmpty();
+            }
+        });
+        ncp.execute(grantedWithYield);
+        TestCase.assertTrue(grantedWithYield.get(5, TimeUnit.SECONDS));
+
+        LeasedChannel second = waiting.get(5, TimeUnit.SECONDS);
+        TestCase.assertSame(first.getInner(), second.getInner());
+        second.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * A channel the waiter's PreGrantLease turns down goes back to idle.
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRejectedHandoffGoesIdle()
+        throws Exception
+    {
+        SimpleServer simpleServer = TestPools.startServer();
+
+        final NettyConnectionPool ncp = buildPool(new PreGrantLease()
+        {
+            @Override
+            public boolean continueToGrantLease(Channel channel, PoolProvider provider, Object userObject)
+            {
+                return !"picky".equals(userObject);
+            }
+        });
+        TestCase.assertTrue("Immortals not opened.", ncp.start(5, TimeUnit.SECONDS));
+
+        LeasedChannel first = ncp.lease(10, TimeUnit.SECONDS, "first");
+
+        final Future<LeasedChannel> picky = ncp.leaseAsync(10, TimeUnit.SECONDS, "picky");
+        awaitWaiting(ncp);
+
+        first.yield();
+
+        FutureTask<Integer> idle = new FutureTask<>(new Callable<Integer>()
+        {
+            @Override
+            public Integer call()
+                throws Exception
+            {
+                return ((IdleChannels)TestUtil.getField(ncp, "immortalContexts")).size();
+            }
+        });
+        ncp.execute(idle);
+        TestCase.assertEquals(1, (int)idle.get(5, TimeUnit.SECONDS));
+        TestCase.assertFalse(picky.isDone());
+
+        TestCase.assertTrue(picky.cancel(true));
+
+        LeasedChannel other = ncp.lease(10, TimeUnit.SECONDS, "other");
+        TestCase.assertSame(first.getInner(), other.getInner());
+        other.yield();
+
+        ncp.stop(false);
+        simpleServer.stop();
+    }
+
+
+    /**
+     * Wait for a request to be parked in leasesRequired.
+     */
+    private void awaitWaiting(final NettyConnectionPool ncp)
+        throws Exception
+    {
+        for (int t = 0; t < 100; t++)
+        {
+            FutureTask<Boolean> parked = new FutureTask<>(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                    throws Exception
+                {
+                    return !((LeaseLanes)TestUtil.getField(ncp, "leasesRequired")).isEmpty();
+                }
+            });
+            ncp.execute(parked);
+            if (parked.get(5, TimeUnit.SECONDS))
+            {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        TestCase.fail("Request did not wait.");
+    }
+
+
+    private NettyConnectionPool buildPool(PreGrantLease preGrantLease)
+    {
+        NettyConnectionPoolBuilder ncb = TestPools.builder(1, 0, 1000);
+
+        if (preGrantLease != null)
+        {
+            ncb.withPreGrantLease(preGrantLease);
+        }
+
+        return ncb.build();
+    }
+}
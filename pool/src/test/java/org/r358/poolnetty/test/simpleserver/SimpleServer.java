@@ -27,6 +27,7 @@ import io.netty.channel.socket.nio.NioServerSocketChannel;
 
 import java.nio.charset.Charset;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple server used as an end point in testing.
@@ -38,6 +39,7 @@ public class SimpleServer implements Runnable
 
     private ServerBootstrap bootstrap = null;
     private ChannelFuture channelFuture = null;
+    private final CountDownLatch bound = new CountDownLatch(1);
 
     public static void main(String[] agrs)
         throws Exception
@@ -93,6 +95,7 @@ public class SimpleServer implements Runnable
         bootstrap.option(ChannelOption.ALLOW_HALF_CLOSURE, true);
         bootstrap.option(ChannelOption.SO_KEEPALIVE, true);
         bootstrap.option(ChannelOption.SO_BACKLOG, backLog);
+        bootstrap.option(ChannelOption.SO_REUSEADDR, true); // Tests rebind the port straight after stopping.
 
 
     }
@@ -101,6 +104,7 @@ public class SimpleServer implements Runnable
     public void run()
     {
         channelFuture = bootstrap.bind().syncUninterruptibly().awaitUninterruptibly();
+        bound.countDown();
 
     }
 
@@ -113,6 +117,7 @@ public class SimpleServer implements Runnable
         th.setDaemon(true);
         th.start();
 
+        bound.await(5, TimeUnit.SECONDS); // Don't let clients connect before the server is listening.
 
     }
 
@@ -120,19 +125,21 @@ public class SimpleServer implements Runnable
     public void stop()
         throws Exception
     {
+        if (channelFuture == null)
+        {
+            return; // Never bound.
+        }
+
         final CountDownLatch cl = new CountDownLatch(1);
-        if (channelFuture != null)
+        channelFuture.channel().close().addListener(new ChannelFutureListener()
         {
-            channelFuture.channel().close().addListener(new ChannelFutureListener()
+            @Override
+            public void operationComplete(ChannelFuture future)
+                throws Exception
             {
-                @Override
-                public void operationComplete(ChannelFuture future)
-                    throws Exception
-                {
-                    cl.countDown();
-                }
-            });
-        }
+                cl.countDown();
+            }
+        });
 
         cl.await();
 
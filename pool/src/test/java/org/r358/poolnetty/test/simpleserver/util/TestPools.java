@@ -0,0 +1,121 @@
+package org.r358.poolnetty.test.simpleserver.util;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import org.r358.poolnetty.common.BootstrapProvider;
+import org.r358.poolnetty.common.ConnectionInfo;
+import org.r358.poolnetty.common.ConnectionInfoProvider;
+import org.r358.poolnetty.common.PoolProvider;
+import org.r358.poolnetty.pool.NettyConnectionPoolBuilder;
+import org.r358.poolnetty.test.simpleserver.SimpleInboundHandler;
+import org.r358.poolnetty.test.simpleserver.SimpleOutboundHandler;
+import org.r358.poolnetty.test.simpleserver.SimpleServer;
+import org.r358.poolnetty.test.simpleserver.SimpleServerListener;
+
+import java.net.InetSocketAddress;
+
+/**
+ * An echo server and pool builders that connect to it, for tests that need nothing special from either.
+ */
+public class TestPools
+{
+    public static final String HOST = "127.0.0.1";
+    public static final int PORT = 1887;
+
+    /**
+     * Start a server that writes every value it receives back.
+     *
+     * @return The started server.
+     * @throws Exception
+     */
+    public static SimpleServer startServer()
+        throws Exception
+    {
+        SimpleServer simpleServer = new SimpleServer(HOST, PORT, 10, new SimpleServerListener()
+        {
+
+            @Override
+            public void newConnection(ChannelHandlerContext ctx)
+            {
+
+            }
+
+            @Override
+            public void newValue(ChannelHandlerContext ctx, String val)
+            {
+                ctx.writeAndFlush(val);
+            }
+        });
+
+        simpleServer.start();
+        return simpleServer;
+    }
+
+    /**
+     * A builder for a pool that connects to the server on a new event loop group.
+     *
+     * @param immortalCount           The immortal count.
+     * @param maxEphemeralCount       The max ephemeral count.
+     * @param ephemeralLifespanMillis The ephemeral lifespan.
+     * @return The builder, anything else can still be set on it.
+     */
+    public static NettyConnectionPoolBuilder builder(int immortalCount, int maxEphemeralCount, int ephemeralLifespanMillis)
+    {
+        return builder(new NioEventLoopGroup(), immortalCount, maxEphemeralCount, ephemeralLifespanMillis);
+    }
+
+    /**
+     * A builder for a pool that connects to the server on the given event loop group.
+     *
+     * @param elg                     The event loop group of the bootstrap.
+     * @param immortalCount           The immortal count.
+     * @param maxEphemeralCount       The max ephemeral count.
+     * @param ephemeralLifespanMillis The ephemeral lifespan.
+     * @return The builder, anything else can still be set on it.
+     */
+    public static NettyConnectionPoolBuilder builder(final EventLoopGroup elg, int immortalCount, int maxEphemeralCount, int ephemeralLifespanMillis)
+    {
+        NettyConnectionPoolBuilder ncb = new NettyConnectionPoolBuilder(immortalCount, maxEphemeralCount, ephemeralLifespanMillis);
+
+        ncb.withBootstrapProvider(new BootstrapProvider()
+        {
+            @Override
+            public Bootstrap createBootstrap(PoolProvider poolProvider)
+            {
+                Bootstrap bs = new Bootstrap();
+                bs.group(elg);
+                bs.channel(NioSocketChannel.class);
+                bs.option(ChannelOption.SO_KEEPALIVE, true);
+                bs.option(ChannelOption.AUTO_READ, true);
+                return bs;
+            }
+        });
+
+        ncb.withConnectionInfoProvider(new ConnectionInfoProvider()
+        {
+            @Override
+            public ConnectionInfo connectionInfo(PoolProvider poolProvider)
+            {
+
+                return new ConnectionInfo(new InetSocketAddress(HOST, PORT), null, new ChannelInitializer()
+                {
+                    @Override
+                    protected void initChannel(Channel ch)
+                        throws Exception
+                    {
+                        ch.pipeline().addLast("decode", new SimpleInboundHandler(10));
+                        ch.pipeline().addLast("encode", new SimpleOutboundHandler(10));
+                    }
+                });
+            }
+        });
+
+        return ncb;
+    }
+}